@@ -0,0 +1,65 @@
+package com.github.arkty.androidcamera.benchmark;
+
+import com.github.arkty.androidcamera.core.BudgetSearch;
+import com.github.arkty.androidcamera.core.EncodableImage;
+import com.github.arkty.androidcamera.core.EncodeBuffer;
+import com.github.arkty.androidcamera.core.ImageHeader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte-budget search over quality and scale. The input is the size a subsampled decode of
+ * a camera shot typically has when it reaches the encoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BudgetSearchBenchmark {
+
+    @Param({"2016x1512", "1008x756"})
+    public String resolution;
+
+    /**
+     * Roomy, tight and unreachable-at-full-size budgets.
+     */
+    @Param({"1000000", "150000", "30000"})
+    public int budgetBytes;
+
+    private EncodableImage image;
+    private EncodeBuffer first;
+    private EncodeBuffer second;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = Fixtures.parse(resolution);
+        image = new BufferedEncodableImage(Fixtures.synthetic(size[0], size[1]));
+        first = new EncodeBuffer(256 * 1024);
+        second = new EncodeBuffer(256 * 1024);
+    }
+
+    @Benchmark
+    public int search() {
+        BudgetSearch search = new BudgetSearch(budgetBytes);
+        EncodeBuffer result = search.search(image, first, second);
+        if(search.getImage() != image)
+            search.getImage().release();
+        return result.size();
+    }
+
+    @Benchmark
+    public int singleEncodeBaseline() {
+        first.reset();
+        image.encode(ImageHeader.FORMAT_JPEG, BudgetSearch.MAX_QUALITY, first);
+        return first.size();
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.arkty.androidcamera.benchmark;
+
+import com.github.arkty.androidcamera.core.EncodableImage;
+import com.github.arkty.androidcamera.core.EncodeBuffer;
+import com.github.arkty.androidcamera.core.ImageHeader;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * JVM stand-in for the Bitmap adapter used on the device: ImageIO JPEG and PNG encoding
+ * and bilinear Graphics2D scaling. ImageIO has no WebP writer, WebP is encoded as JPEG.
+ */
+class BufferedEncodableImage implements EncodableImage {
+
+    private final BufferedImage image;
+
+    BufferedEncodableImage(BufferedImage image) {
+        this.image = image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public void encode(int format, int quality, EncodeBuffer out) {
+        try {
+            if(format == ImageHeader.FORMAT_PNG)
+                ImageIO.write(image, "png", out);
+            else
+                Fixtures.writeJpeg(image, quality, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public EncodableImage scale(int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, image.getType());
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return new BufferedEncodableImage(scaled);
+    }
+
+    @Override
+    public void release() {
+        image.flush();
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.arkty.androidcamera.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The disk and date format work between a pick request and the camera intent, as the
+ * main thread sees it once per process: done in place, and with what CaptureWarmup
+ * prepared on a worker beforehand. The photo file is created in place either way, the
+ * warmup only leaves the directory and the date format behind. Every measurement runs in
+ * a fresh JVM, so class loading and locale data count like they do on a cold start.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(20)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class CameraStartBenchmark {
+
+    private static final String PATTERN = "yyyyMMdd_HHmmss";
+
+    private File parent;
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        parent = Files.createTempDirectory("start").toFile();
+        dir = new File(parent, "cache");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        deleteDir(dir);
+        parent.delete();
+    }
+
+    @Benchmark
+    public String cold() throws IOException {
+        // Like getCacheDir() on first use
+        dir.mkdirs();
+        File file = newTempFile(dir);
+        return file.getName() + new SimpleDateFormat(PATTERN, Locale.getDefault()).format(new Date());
+    }
+
+    @Benchmark
+    public String prewarmed(Prepared prepared) throws IOException {
+        File file = newTempFile(prepared.dir);
+        return file.getName() + prepared.format.format(new Date());
+    }
+
+    /**
+     * What the warmup task leaves behind, prepared on another thread before the request.
+     * Only the prewarmed run uses it, so the cold one finds nothing loaded.
+     */
+    @State(Scope.Thread)
+    public static class Prepared {
+
+        File dir;
+        SimpleDateFormat format;
+
+        @Setup(Level.Trial)
+        public void prewarm() throws Exception {
+            dir = Files.createTempDirectory("start").toFile();
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    format = new SimpleDateFormat(PATTERN, Locale.getDefault());
+                }
+            });
+            worker.start();
+            worker.join();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            deleteDir(dir);
+        }
+    }
+
+    private static File newTempFile(File dir) throws IOException {
+        File file = File.createTempFile("photo", ".jpg", dir);
+        file.setWritable(true, false);
+        return file;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.arkty.androidcamera.benchmark;
+
+import com.github.arkty.androidcamera.core.ChannelCopier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying a camera original into the cache dir: the channel transfer path, the pooled
+ * buffer path used for plain streams, and the old 1 KB loop for reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CopyBenchmark {
+
+    @Param({"1", "4", "12"})
+    public int megabytes;
+
+    private File dir;
+    private File source;
+    private File target;
+    private ChannelCopier copier;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("copy").toFile();
+        source = new File(dir, "source.jpg");
+        target = new File(dir, "target.jpg");
+
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        OutputStream out = new FileOutputStream(source);
+        try {
+            for(int i = 0; i < megabytes; i++) {
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+        copier = new ChannelCopier();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        target.delete();
+        source.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long transfer() throws IOException {
+        return copier.copy(source, target, null);
+    }
+
+    @Benchmark
+    public long pooledBuffer() throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            return copier.copy(in, -1, target, null);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public long legacyLoop() throws IOException {
+        InputStream in = new FileInputStream(source);
+        OutputStream out = new FileOutputStream(target);
+        long total = 0;
+        try {
+            byte[] buffer = new byte[1024];
+            int len;
+            while((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                total += len;
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.arkty.androidcamera.benchmark;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Synthetic camera-like test images. Gradients, shapes and sensor-like noise keep the
+ * encoders from compressing them unrealistically well.
+ */
+final class Fixtures {
+
+    /**
+     * 12 MP, 8 MP and 2 MP, the most common sizes coming out of phone cameras.
+     */
+    static final String RESOLUTIONS = "4032x3024,3264x2448,1920x1080";
+
+    private Fixtures() {
+    }
+
+    static int[] parse(String resolution) {
+        String[] parts = resolution.split("x");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    static BufferedImage synthetic(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), width, height, new Color(220, 180, 120)));
+        g.fillRect(0, 0, width, height);
+
+        Random random = new Random(42);
+        for(int i = 0; i < 200; i++) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.fillOval(random.nextInt(width), random.nextInt(height), 20 + random.nextInt(width / 8), 20 + random.nextInt(height / 8));
+        }
+        g.dispose();
+
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for(int x = 0; x < width; x++) {
+                int n = random.nextInt(9) - 4;
+                int r = clamp(((row[x] >> 16) & 0xFF) + n);
+                int gr = clamp(((row[x] >> 8) & 0xFF) + n);
+                int b = clamp((row[x] & 0xFF) + n);
+                row[x] = r << 16 | gr << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    static File write(BufferedImage image, String format, File dir) throws IOException {
+        File file = File.createTempFile("fixture", "." + format, dir);
+        file.deleteOnExit();
+        if("jpg".equals(format)) {
+            writeJpeg(image, 92, file);
+        }
+        else if(!ImageIO.write(image, format, file)) {
+            throw new IOException("No writer for " + format);
+        }
+        return file;
+    }
+
+    static void writeJpeg(BufferedImage image, int quality, Object output) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+
+        ImageOutputStream out = ImageIO.createImageOutputStream(output);
+        try {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            out.close();
+            writer.dispose();
+        }
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+}
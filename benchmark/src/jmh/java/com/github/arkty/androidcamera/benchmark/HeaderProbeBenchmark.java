@@ -0,0 +1,79 @@
+package com.github.arkty.androidcamera.benchmark;
+
+import com.github.arkty.androidcamera.core.ImageHeader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reading dimensions from the file header, against ImageIO's reader as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HeaderProbeBenchmark {
+
+    @Param({Fixtures.RESOLUTIONS})
+    public String resolution;
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] size = Fixtures.parse(resolution);
+        File dir = Files.createTempDirectory("probe").toFile();
+        dir.deleteOnExit();
+        file = Fixtures.write(Fixtures.synthetic(size[0], size[1]), format, dir);
+    }
+
+    @Benchmark
+    public int probe() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 8192);
+        try {
+            ImageHeader header = ImageHeader.probe(in);
+            return header.width ^ header.height;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public int imageIoBaseline() throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return reader.getWidth(0) ^ reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.arkty.androidcamera.benchmark;
+
+import com.github.arkty.androidcamera.core.Resampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exact downscale of a subsampled decode to common output sizes, on one thread and
+ * striped over several.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResampleBenchmark {
+
+    @Param({"2016x1512", "1008x756"})
+    public String resolution;
+
+    @Param({"1024x768", "320x240"})
+    public String target;
+
+    @Param({"0", "1"})
+    public int filter;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private int srcW;
+    private int srcH;
+    private int dstW;
+    private int dstH;
+    private int[] src;
+    private int[] dst;
+    private ExecutorService executor;
+    private Resampler resampler;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = Fixtures.parse(resolution);
+        int[] out = Fixtures.parse(target);
+        srcW = size[0];
+        srcH = size[1];
+        dstW = out[0];
+        dstH = out[1];
+        BufferedImage image = Fixtures.synthetic(srcW, srcH);
+        src = image.getRGB(0, 0, srcW, srcH, null, 0, srcW);
+        dst = new int[dstW * dstH];
+        executor = threads > 1 ? Executors.newFixedThreadPool(threads - 1) : null;
+        resampler = new Resampler(filter, executor, threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(executor != null)
+            executor.shutdown();
+    }
+
+    @Benchmark
+    public int[] resample() {
+        resampler.resample(src, srcW, srcH, dst, dstW, dstH);
+        return dst;
+    }
+}
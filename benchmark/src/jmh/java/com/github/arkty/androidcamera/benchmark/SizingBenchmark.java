@@ -0,0 +1,66 @@
+package com.github.arkty.androidcamera.benchmark;
+
+import com.github.arkty.androidcamera.core.SizeCalculator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Target size and inSampleSize computation for every scale mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SizingBenchmark {
+
+    @Param({Fixtures.RESOLUTIONS})
+    public String resolution;
+
+    @Param({"1024x1024", "640x480", "200x200"})
+    public String box;
+
+    private int srcW;
+    private int srcH;
+    private int maxW;
+    private int maxH;
+
+    @Setup
+    public void setUp() {
+        int[] src = Fixtures.parse(resolution);
+        int[] max = Fixtures.parse(box);
+        srcW = src[0];
+        srcH = src[1];
+        maxW = max[0];
+        maxH = max[1];
+    }
+
+    @Benchmark
+    public void fit(Blackhole bh) {
+        plan(SizeCalculator.SCALE_FIT, bh);
+    }
+
+    @Benchmark
+    public void fill(Blackhole bh) {
+        plan(SizeCalculator.SCALE_FILL, bh);
+    }
+
+    @Benchmark
+    public void centerCrop(Blackhole bh) {
+        plan(SizeCalculator.SCALE_CENTER_CROP, bh);
+    }
+
+    private void plan(int mode, Blackhole bh) {
+        int[] scaled = SizeCalculator.scaledSize(srcW, srcH, maxW, maxH, mode);
+        bh.consume(SizeCalculator.targetSize(srcW, srcH, maxW, maxH, mode));
+        bh.consume(SizeCalculator.sampleSize(srcW, srcH, scaled[0], scaled[1]));
+    }
+}
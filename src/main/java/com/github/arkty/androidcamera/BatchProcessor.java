@@ -0,0 +1,129 @@
+package com.github.arkty.androidcamera;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs ImageProcessor over a list of picked Uris in parallel and reports every image as
+ * soon as it is done. At most a few jobs per worker are queued at a time, so a large
+ * selection never overflows the pool queue.
+ *
+ * ImageProcessor holds its callbacks weakly, so the caller has to keep the processor
+ * referenced until {@link Listener#onBatchFinished} or {@link #cancel()}.
+ */
+public class BatchProcessor {
+
+    private static final int JOBS_PER_WORKER = 2;
+
+    private final Context context;
+    private final List<Uri> uris;
+    private final ProcessingOptions options;
+    private final Listener listener;
+    private final UriResolver uriResolver;
+    private final int window;
+    private final List<ImageProcessor.Callback> callbacks = new ArrayList<>();
+
+    private int next;
+    private int completed;
+    private int failed;
+    private boolean cancelled;
+
+    public BatchProcessor(Context context, List<Uri> uris, ProcessingOptions options, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.uris = new ArrayList<>(uris);
+        // Workers read the options while the caller may go on changing its own
+        this.options = new ProcessingOptions(options);
+        this.listener = listener;
+        this.uriResolver = new UriResolver(this.context);
+        this.window = WorkerPool.getInstance().getPoolSize() * JOBS_PER_WORKER;
+    }
+
+    /**
+     * Must be called on the main thread; all listener calls happen there too.
+     */
+    public void start() {
+        if(uris.isEmpty()) {
+            listener.onBatchFinished(0, 0);
+            return;
+        }
+        while(next < uris.size() && next - completed < window) {
+            submit(next++);
+        }
+    }
+
+    /**
+     * Stops submitting new images. Jobs already running finish, but are not reported.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void submit(final int index) {
+        final Uri uri = uris.get(index);
+        final ImageProcessor.Callback callback = new ImageProcessor.Callback() {
+            @Override
+            public void onImageProcessed(String filename) {
+                onDone(index, uri, filename);
+            }
+        };
+        // Reachable as long as the caller holds the processor
+        callbacks.add(callback);
+
+        WorkerPool.getInstance().execute(new WorkerPool.Task(WorkerPool.PRIORITY_USER) {
+            @Override
+            public void run() {
+                String path = uriResolver.resolvePath(uri);
+                ImageProcessor processor = path != null
+                        ? new ImageProcessor(context, path, callback, options, WorkerPool.PRIORITY_USER)
+                        : new ImageProcessor(context, uri, callback, options, WorkerPool.PRIORITY_USER);
+                processor.run();
+            }
+
+            @Override
+            protected void onRejected() {
+                // Called on whichever thread pushed the task out of the queue
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onImageProcessed(null);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onDone(int index, Uri uri, String filename) {
+        if(cancelled)
+            return;
+
+        completed++;
+        if(filename != null) {
+            listener.onImageProcessed(index, filename);
+        }
+        else {
+            failed++;
+            listener.onImageFailed(index, uri);
+        }
+        listener.onProgress(completed, uris.size());
+
+        if(next < uris.size()) {
+            submit(next++);
+        }
+        else if(completed == uris.size()) {
+            callbacks.clear();
+            listener.onBatchFinished(completed - failed, failed);
+        }
+    }
+
+    public interface Listener {
+        void onImageProcessed(int index, String filename);
+        void onImageFailed(int index, Uri uri);
+        void onProgress(int completed, int total);
+        void onBatchFinished(int succeeded, int failed);
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.arkty.androidcamera;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Size-bucketed pool of mutable bitmaps shared by all processing jobs. Pooled bitmaps
+ * feed {@link android.graphics.BitmapFactory.Options#inBitmap} and the scale step.
+ *
+ * Buckets are keyed by allocation size. From KitKat any bitmap at least as large as the
+ * request (but not more than twice) is reconfigured and reused; on Honeycomb..JellyBean
+ * only exact size and config matches qualify. Before Honeycomb the pool stays empty.
+ */
+public final class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    private static final int MAX_SIZE_MULTIPLIER = 2;
+
+    private static BitmapPool instance;
+
+    public static synchronized BitmapPool getInstance(Context context) {
+        if(instance == null) {
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+                instance.registerTrimCallbacks(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> buckets = new TreeMap<>();
+    private long maxBytes;
+    private long currentBytes;
+    private int hits;
+    private int misses;
+
+    private BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimTo(maxBytes);
+    }
+
+    /**
+     * Returns a cleared mutable bitmap of exactly the given size or null on a miss.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            bitmap = takeAtLeast(width, height, config);
+        }
+        else if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            bitmap = takeExact(width, height, config);
+        }
+
+        if(bitmap == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap back to the pool. Bitmaps that can't be reused are recycled.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if(bitmap == null || bitmap.isRecycled())
+            return;
+
+        int size = byteCount(bitmap);
+        if(!bitmap.isMutable() || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || size > maxBytes / 2) {
+            bitmap.recycle();
+            return;
+        }
+
+        LinkedList<Bitmap> bucket = buckets.get(size);
+        if(bucket == null) {
+            bucket = new LinkedList<>();
+            buckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        currentBytes += size;
+        trimTo(maxBytes);
+    }
+
+    public synchronized void clear() {
+        trimTo(0);
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * Reacts to {@link ComponentCallbacks2} trim levels: drops everything when the app is
+     * about to be killed or runs critically low, half of the pool otherwise.
+     */
+    public synchronized void trimMemory(int level) {
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0);
+        }
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(currentBytes / 2);
+        }
+        Log.v(TAG, "trimMemory(" + level + "), size = " + currentBytes);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap takeAtLeast(int width, int height, Bitmap.Config config) {
+        int required = width * height * bytesPerPixel(config);
+        Map.Entry<Integer, LinkedList<Bitmap>> entry = buckets.ceilingEntry(required);
+        if(entry == null || entry.getKey() > required * MAX_SIZE_MULTIPLIER)
+            return null;
+
+        Bitmap bitmap = remove(entry.getKey(), entry.getValue(), entry.getValue().getLast());
+        bitmap.reconfigure(width, height, config);
+        return bitmap;
+    }
+
+    private Bitmap takeExact(int width, int height, Bitmap.Config config) {
+        int required = width * height * bytesPerPixel(config);
+        LinkedList<Bitmap> bucket = buckets.get(required);
+        if(bucket == null)
+            return null;
+
+        for(Iterator<Bitmap> it = bucket.descendingIterator(); it.hasNext(); ) {
+            Bitmap candidate = it.next();
+            if(candidate.getWidth() == width && candidate.getHeight() == height && candidate.getConfig() == config)
+                return remove(required, bucket, candidate);
+        }
+        return null;
+    }
+
+    private Bitmap remove(int size, LinkedList<Bitmap> bucket, Bitmap bitmap) {
+        bucket.remove(bitmap);
+        if(bucket.isEmpty())
+            buckets.remove(size);
+        currentBytes -= size;
+        return bitmap;
+    }
+
+    private void trimTo(long limit) {
+        while(currentBytes > limit && !buckets.isEmpty()) {
+            Map.Entry<Integer, LinkedList<Bitmap>> largest = buckets.lastEntry();
+            Bitmap bitmap = remove(largest.getKey(), largest.getValue(), largest.getValue().getFirst());
+            bitmap.recycle();
+        }
+    }
+
+    static int byteCount(Bitmap bitmap) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return bitmap.getAllocationByteCount();
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if(config == Bitmap.Config.ALPHA_8)
+            return 1;
+        if(config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+            return 2;
+        return 4;
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerTrimCallbacks(Context context) {
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+
+            }
+
+            @Override
+            public void onLowMemory() {
+                clear();
+            }
+        });
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.arkty.androidcamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.github.arkty.androidcamera.core.EncodeBuffer;
+import com.github.arkty.androidcamera.core.QualitySearch;
+
+/**
+ * {@link QualitySearch} proxy over a bitmap, scaled down so its longer side is at most
+ * {@link #PROXY_SIDE_PX}.
+ */
+class BitmapProxy implements QualitySearch.Proxy {
+
+    static final int PROXY_SIDE_PX = 512;
+
+    private final Bitmap bitmap;
+    private final boolean owned;
+    private int[] pixels;
+
+    BitmapProxy(Bitmap source) {
+        int w = source.getWidth();
+        int h = source.getHeight();
+        float scale = Math.min(1f, PROXY_SIDE_PX / (float) Math.max(w, h));
+        if(scale < 1) {
+            bitmap = Bitmap.createScaledBitmap(source, Math.max(1, Math.round(w * scale)),
+                    Math.max(1, Math.round(h * scale)), true);
+        }
+        else {
+            bitmap = source;
+        }
+        owned = bitmap != source;
+    }
+
+    @Override
+    public int getWidth() {
+        return bitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return bitmap.getHeight();
+    }
+
+    @Override
+    public int[] getPixels() {
+        if(pixels == null) {
+            pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+            bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        }
+        return pixels;
+    }
+
+    @Override
+    public void encode(int format, int quality, EncodeBuffer out) {
+        bitmap.compress(ByteBudgetEncoder.compressFormat(format), quality, out);
+    }
+
+    @Override
+    public int[] decode(EncodeBuffer encoded) {
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        int[] decoded = new int[w * h];
+        Bitmap b = BitmapFactory.decodeByteArray(encoded.array(), 0, encoded.size());
+        if(b == null)
+            return decoded;
+        b.getPixels(decoded, 0, w, 0, 0, Math.min(w, b.getWidth()), Math.min(h, b.getHeight()));
+        b.recycle();
+        return decoded;
+    }
+
+    void release() {
+        if(owned)
+            bitmap.recycle();
+    }
+}
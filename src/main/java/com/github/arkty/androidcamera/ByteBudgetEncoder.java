@@ -0,0 +1,113 @@
+package com.github.arkty.androidcamera;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.github.arkty.androidcamera.core.BudgetSearch;
+import com.github.arkty.androidcamera.core.EncodableImage;
+import com.github.arkty.androidcamera.core.EncodeBuffer;
+import com.github.arkty.androidcamera.core.ImageHeader;
+
+/**
+ * Encodes a bitmap as the largest image of the given format that fits into a byte budget,
+ * see {@link BudgetSearch}. Scratch buffers are kept per worker thread.
+ */
+class ByteBudgetEncoder {
+
+    private static final String TAG = "ByteBudgetEncoder";
+
+    static final int MAX_QUALITY = BudgetSearch.MAX_QUALITY;
+
+    private static final ThreadLocal<EncodeBuffer[]> BUFFERS = new ThreadLocal<EncodeBuffer[]>() {
+        @Override
+        protected EncodeBuffer[] initialValue() {
+            return new EncodeBuffer[]{new EncodeBuffer(256 * 1024), new EncodeBuffer(256 * 1024)};
+        }
+    };
+
+    private final int budgetBytes;
+    private final BudgetSearch search;
+
+    private final BitmapPool pool;
+
+    /**
+     * @param format one of the {@link ImageHeader} FORMAT_ constants the device can write
+     * @param maxQuality the highest quality the search tries
+     * @param pool takes the scaled bitmaps the search gives up on
+     */
+    ByteBudgetEncoder(int budgetBytes, int format, int maxQuality, BitmapPool pool) {
+        this.budgetBytes = budgetBytes;
+        this.search = new BudgetSearch(budgetBytes, format);
+        this.pool = pool;
+        search.setMaxQuality(maxQuality);
+    }
+
+    static Bitmap.CompressFormat compressFormat(int format) {
+        if(format == ImageHeader.FORMAT_PNG)
+            return Bitmap.CompressFormat.PNG;
+        if(format == ImageHeader.FORMAT_WEBP)
+            return Bitmap.CompressFormat.WEBP;
+        return Bitmap.CompressFormat.JPEG;
+    }
+
+    /**
+     * Returns the buffer holding the chosen encoding. It belongs to the calling thread and
+     * stays valid until the next encode on that thread. {@link #getBitmap()} is the bitmap
+     * that was actually encoded; when it differs from the argument the caller owns it.
+     */
+    EncodeBuffer encode(Bitmap source) {
+        EncodeBuffer[] buffers = BUFFERS.get();
+        EncodeBuffer result = search.search(new BitmapImage(source, pool), buffers[0], buffers[1]);
+        if(!search.fits())
+            Log.w(TAG, "Budget " + budgetBytes + " is unreachable, giving up at " + result.size());
+        return result;
+    }
+
+    int getQuality() {
+        return search.getQuality();
+    }
+
+    boolean fits() {
+        return search.fits();
+    }
+
+    Bitmap getBitmap() {
+        return ((BitmapImage) search.getImage()).bitmap;
+    }
+
+    private static class BitmapImage implements EncodableImage {
+
+        final Bitmap bitmap;
+        private final BitmapPool pool;
+
+        BitmapImage(Bitmap bitmap, BitmapPool pool) {
+            this.bitmap = bitmap;
+            this.pool = pool;
+        }
+
+        @Override
+        public int getWidth() {
+            return bitmap.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return bitmap.getHeight();
+        }
+
+        @Override
+        public void encode(int format, int quality, EncodeBuffer out) {
+            bitmap.compress(compressFormat(format), quality, out);
+        }
+
+        @Override
+        public EncodableImage scale(int width, int height) {
+            return new BitmapImage(Bitmap.createScaledBitmap(bitmap, width, height, true), pool);
+        }
+
+        @Override
+        public void release() {
+            pool.put(bitmap);
+        }
+    }
+}
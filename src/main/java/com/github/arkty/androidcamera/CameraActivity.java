@@ -3,6 +3,7 @@ package com.github.arkty.androidcamera;
 import android.Manifest;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.ActivityNotFoundException;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -17,30 +18,60 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Locale;
 
 /**
  * Author: Andrey Khitryy
  * Email: andrey.khitryy@gmail.com
  */
-public class CameraActivity extends AppCompatActivity implements ImageProcessor.Callback{
+public class CameraActivity extends AppCompatActivity implements ImageProcessor.Callback, OutputTarget.Callback{
 
     private static final String TAG = "CameraActivity";
 
     private static final String EXTRA_REQUIRED_SIZE_PX = "requiredSizePx";
     private static final String EXTRA_REQUIRED_SIZE_BYTES = "requiredSizeBytes";
+    private static final String EXTRA_OPTIONS = "processingOptions";
 
     private static final String EXTRA_SAVE_IN_GALLERY = "saveInGallery";
     private static final String EXTRA_OUTPUT_FILENAME = "outputFilename";
+    private static final String EXTRA_PREVIEW_TOKEN = "previewToken";
+    private static final String EXTRA_OUTPUT_TARGET = "outputTarget";
+    private static final String EXTRA_START_NANOS = "startNanos";
+    private static final String EXTRA_BURST = "burst";
+    // OutputChannel token of the ProcessedImage, set on RESULT_OK for an output target
+    static final String EXTRA_OUTPUT_TOKEN = "outputToken";
+    // Set on RESULT_OK when the file follows through the preview job
+    static final String EXTRA_RESULT_PENDING = "resultPending";
 
     public static final String EXTRA_PHOTO_FILE_PATH = "extraPhotoFilePath";
+    /**
+     * Processed files of a burst in capture order, see {@link #startForBurstResult}.
+     */
+    public static final String EXTRA_PHOTO_FILE_PATHS = "extraPhotoFilePaths";
+
+    private static final String STATE_OUTPUT_FILE = "outputFile";
+    private static final String STATE_AWAITING_RESULT = "awaitingResult";
+    private static final String STATE_JOB_ID = "jobId";
+    private static final String STATE_SHOT_FILES = "shotFiles";
+    private static final String STATE_SHOT_RESULTS = "shotResults";
+    private static final String STATE_SHOT_JOB_IDS = "shotJobIds";
+    private static final String STATE_BURST_ENDED = "burstEnded";
 
     public static final int RESULT_CAMERA_PERMISSION_DENIED = 1;
     public static final int RESULT_STORAGE_PERMISSION_DENIED = 2;
     public static final int RESULT_ERROR = 3;
 
+    private static volatile StartupListener startupListener;
+
+    /**
+     * Receives the time it took to get from the pick request to dispatching the camera
+     * intent, for every start of the camera. Null (the default) turns it off.
+     */
+    public static void setStartupListener(StartupListener listener) {
+        startupListener = listener;
+    }
+
     public static void startForResult(AppCompatActivity context, int requestCode, int requiredSizeBytes, int requiredSizePx, boolean saveInGallery, String outputFilename) {
         Intent i = new Intent(context, com.github.arkty.androidcamera.CameraActivity.class);
         i.putExtra(EXTRA_REQUIRED_SIZE_BYTES, requiredSizeBytes);
@@ -51,73 +82,207 @@ public class CameraActivity extends AppCompatActivity implements ImageProcessor.
         context.startActivityForResult(i, requestCode);
     }
 
+    public static void startForResult(AppCompatActivity context, int requestCode, ProcessingOptions options, boolean saveInGallery, String outputFilename) {
+        startForResult(context, requestCode, options, saveInGallery, outputFilename, 0, 0, System.nanoTime());
+    }
+
+    /**
+     * With the id of a preview job in the {@link JobRegistry} the activity finishes as soon
+     * as the photo is taken and both the preview and the processed file are delivered through
+     * that job. With an {@link OutputChannel} token of an {@link OutputTarget} the result is
+     * a ProcessedImage handed back through that channel instead of a file.
+     *
+     * @param startNanos {@link System#nanoTime()} of the pick request, for the {@link StartupListener}
+     */
+    static void startForResult(AppCompatActivity context, int requestCode, ProcessingOptions options, boolean saveInGallery, String outputFilename,
+                               int previewToken, int outputTargetToken, long startNanos) {
+        Intent i = new Intent(context, com.github.arkty.androidcamera.CameraActivity.class);
+        i.putExtra(EXTRA_OPTIONS, options);
+        i.putExtra(EXTRA_SAVE_IN_GALLERY, saveInGallery);
+        i.putExtra(EXTRA_OUTPUT_FILENAME, outputFilename);
+        i.putExtra(EXTRA_PREVIEW_TOKEN, previewToken);
+        i.putExtra(EXTRA_OUTPUT_TARGET, outputTargetToken);
+        i.putExtra(EXTRA_START_NANOS, startNanos);
+
+        context.startActivityForResult(i, requestCode);
+    }
+
+    /**
+     * Takes photos one after another until the user backs out of the camera. Each photo is
+     * processed in the background while the next one is taken, and all results come back
+     * at once in {@link #EXTRA_PHOTO_FILE_PATHS}. Photos that failed to process are left out.
+     * The files belong to the caller, nothing in the library deletes or replaces them later.
+     */
+    public static void startForBurstResult(AppCompatActivity context, int requestCode, ProcessingOptions options, boolean saveInGallery) {
+        Intent i = new Intent(context, com.github.arkty.androidcamera.CameraActivity.class);
+        i.putExtra(EXTRA_OPTIONS, options);
+        i.putExtra(EXTRA_SAVE_IN_GALLERY, saveInGallery);
+        i.putExtra(EXTRA_BURST, true);
+        i.putExtra(EXTRA_START_NANOS, System.nanoTime());
+
+        context.startActivityForResult(i, requestCode);
+    }
+
     private final int REQUEST_CAMERA = 0;
 
     private final int REQUEST_CAMERA_PERMISSION = 1;
     private final int REQUEST_FILEREAD_PERMISSION = 2;
 
-    private int requiredSizeBytes;
-    private int requiredSizePx;
+    private ProcessingOptions options;
 
     private boolean saveInGallery;
     private String outputFilename;
+    private int previewToken;
+    private OutputTarget outputTarget;
+    private long startNanos;
 
     private Uri outputFileUri;
     private File outputFile;
     private Dialog progress;
 
+    // The camera or a permission dialog is open
+    private boolean awaitingResult;
+    private JobRegistry.Job job;
+
+    private boolean burst;
+    // Per shot in capture order: the photo, its processed file and its job until it is done
+    private final ArrayList<String> shotFiles = new ArrayList<>();
+    private final ArrayList<String> shotResults = new ArrayList<>();
+    private final ArrayList<JobRegistry.Job> shotJobs = new ArrayList<>();
+    private boolean burstEnded;
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         Intent i = getIntent();
-        requiredSizeBytes = i.getIntExtra(EXTRA_REQUIRED_SIZE_BYTES, 0);
-        requiredSizePx = i.getIntExtra(EXTRA_REQUIRED_SIZE_PX, 0);
+        options = i.getParcelableExtra(EXTRA_OPTIONS);
+        if(options == null)
+            options = ProcessingOptions.legacy(i.getIntExtra(EXTRA_REQUIRED_SIZE_PX, 0), i.getIntExtra(EXTRA_REQUIRED_SIZE_BYTES, 0));
         saveInGallery = i.getBooleanExtra(EXTRA_SAVE_IN_GALLERY, false);
         outputFilename = i.getStringExtra(EXTRA_OUTPUT_FILENAME);
+        previewToken = i.getIntExtra(EXTRA_PREVIEW_TOKEN, 0);
+        outputTarget = (OutputTarget) OutputChannel.get(i.getIntExtra(EXTRA_OUTPUT_TARGET, 0));
+        startNanos = i.getLongExtra(EXTRA_START_NANOS, 0);
+        burst = i.getBooleanExtra(EXTRA_BURST, false);
 
-        if(saveInGallery) {
-            if(outputFilename == null)
+        if(savedInstanceState != null && savedInstanceState.getString(STATE_OUTPUT_FILE) != null) {
+            // Recreated while the camera or the processing job was running: keep the same file
+            outputFile = new File(savedInstanceState.getString(STATE_OUTPUT_FILE));
+            awaitingResult = savedInstanceState.getBoolean(STATE_AWAITING_RESULT);
+        }
+        else if(burst && savedInstanceState != null && savedInstanceState.getBoolean(STATE_BURST_ENDED)) {
+            // Only waiting for the last shots to be processed
+            outputFile = null;
+        }
+        else if(saveInGallery) {
+            if(outputFilename == null || burst)
                 outputFilename = generateFilename();
             outputFile = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), outputFilename);
         }
         else {
             try {
-                outputFile = createTempFile();
+                outputFile = CaptureWarmup.newTempFile(this);
             } catch (IOException e) {
                 setResult(RESULT_ERROR);
                 finish();
+                return;
             }
         }
 
-        progress = new ProgressDialog.Builder(this)
-                .setMessage("Пожалуйста подождите..")
-                .setCancelable(false)
-                .create();
+        if(burst && savedInstanceState != null) {
+            restoreBurst(savedInstanceState);
+            if(burstEnded || awaitingResult)
+                return;
+        }
 
-        if(isPermissionGranted(Manifest.permission.CAMERA)) {
+        int jobId = savedInstanceState != null ? savedInstanceState.getInt(STATE_JOB_ID) : 0;
+        if(jobId != 0) {
+            job = JobRegistry.getInstance().get(jobId);
+            if(job != null) {
+                showProgress();
+                job.attach(this);
+            }
+            else {
+                // The process was killed while processing; the photo is still on disk
+                returnResult();
+            }
+        }
+        else if(awaitingResult) {
+            // The pending result will be delivered to this instance
+            Log.v(TAG, "Waiting for the camera or permissions");
+        }
+        else if(isPermissionGranted(Manifest.permission.CAMERA)) {
             takePhoto();
         }
         else {
             requestPermission(Manifest.permission.CAMERA, REQUEST_CAMERA_PERMISSION);
         }
+        // Ready for the next capture
+        CaptureWarmup.prewarm(this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if(outputFile != null)
+            outState.putString(STATE_OUTPUT_FILE, outputFile.getAbsolutePath());
+        outState.putBoolean(STATE_AWAITING_RESULT, awaitingResult);
+        if(job != null)
+            outState.putInt(STATE_JOB_ID, job.id);
+        if(burst) {
+            int[] ids = new int[shotJobs.size()];
+            for(int n = 0; n < ids.length; n++) {
+                ids[n] = shotJobs.get(n) != null ? shotJobs.get(n).id : 0;
+            }
+            outState.putStringArrayList(STATE_SHOT_FILES, shotFiles);
+            outState.putStringArrayList(STATE_SHOT_RESULTS, shotResults);
+            outState.putIntArray(STATE_SHOT_JOB_IDS, ids);
+            outState.putBoolean(STATE_BURST_ENDED, burstEnded);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if(job != null) {
+            job.detach();
+            if(isFinishing())
+                JobRegistry.getInstance().remove(job.id);
+        }
+        for(JobRegistry.Job shotJob : shotJobs) {
+            if(shotJob != null) {
+                shotJob.detach();
+                if(isFinishing())
+                    JobRegistry.getInstance().remove(shotJob.id);
+            }
+        }
+        dismissProgress();
+        super.onDestroy();
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if(requestCode == REQUEST_CAMERA){
+            awaitingResult = false;
             if(resultCode == AppCompatActivity.RESULT_OK) {
                 if (data != null) {
                     if(isPermissionGranted(Manifest.permission.READ_EXTERNAL_STORAGE)) {
-                        returnResult();
+                        onPhotoTaken();
                     }
                     else {
                         requestPermission(Manifest.permission.READ_EXTERNAL_STORAGE, REQUEST_FILEREAD_PERMISSION);
                     }
                 } else {
-                    returnResult();
+                    onPhotoTaken();
                 }
             }
+            else if(burst) {
+                // Backing out of the camera ends the burst; the last file was never written
+                if(!saveInGallery)
+                    outputFile.delete();
+                outputFile = null;
+                endBurst();
+            }
             else {
                 setResult(RESULT_CANCELED);
                 finish();
@@ -127,6 +292,7 @@ public class CameraActivity extends AppCompatActivity implements ImageProcessor.
 
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        awaitingResult = false;
         switch (requestCode) {
             case REQUEST_CAMERA_PERMISSION: {
                 if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
@@ -140,7 +306,7 @@ public class CameraActivity extends AppCompatActivity implements ImageProcessor.
             }
             case REQUEST_FILEREAD_PERMISSION: {
                 if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                    returnResult();
+                    onPhotoTaken();
                 } else {
                     Log.e(TAG, "User didn't allow to read external storage.");
                     setResult(RESULT_STORAGE_PERMISSION_DENIED);
@@ -153,15 +319,177 @@ public class CameraActivity extends AppCompatActivity implements ImageProcessor.
     }
 
     private void takePhoto() {
+        if(CaptureWarmup.isCameraMissing()) {
+            Log.e(TAG, "No camera app");
+            setResult(RESULT_ERROR);
+            finish();
+            return;
+        }
         Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
         outputFileUri = Uri.fromFile(outputFile);
         intent.putExtra(MediaStore.EXTRA_OUTPUT, outputFileUri);
-        startActivityForResult(intent, REQUEST_CAMERA);
+        // Skips resolving the intent again when the default camera is already known
+        intent.setComponent(CaptureWarmup.getCamera());
+        awaitingResult = true;
+        try {
+            startActivityForResult(intent, REQUEST_CAMERA);
+        } catch (ActivityNotFoundException e) {
+            // The default camera went away since it was resolved
+            intent.setComponent(null);
+            try {
+                startActivityForResult(intent, REQUEST_CAMERA);
+            } catch (ActivityNotFoundException e2) {
+                Log.e(TAG, "No camera app", e2);
+                awaitingResult = false;
+                setResult(RESULT_ERROR);
+                finish();
+                return;
+            }
+        }
+        reportStartup();
     }
 
-    private void returnResult() {
+    private void onPhotoTaken() {
+        if(!burst) {
+            returnResult();
+            return;
+        }
+
+        shotFiles.add(outputFile.getAbsolutePath());
+        shotResults.add(null);
+        shotJobs.add(null);
+        processShot(shotFiles.size() - 1);
+
+        try {
+            outputFile = saveInGallery ? new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), generateFilename())
+                    : CaptureWarmup.newTempFile(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't create the next photo file", e);
+            outputFile = null;
+            endBurst();
+            return;
+        }
+        CaptureWarmup.prewarm(this);
+        takePhoto();
+    }
+
+    private void processShot(int index) {
+        JobRegistry.Job shotJob = JobRegistry.getInstance().newJob();
+        shotJobs.set(index, shotJob);
+        shotJob.attach(new ShotCallback(index));
+        WorkerPool.getInstance().execute(new ImageProcessor(getApplicationContext(), shotFiles.get(index),
+                shotJob, options, WorkerPool.PRIORITY_USER));
+    }
+
+    private void restoreBurst(Bundle state) {
+        ArrayList<String> files = state.getStringArrayList(STATE_SHOT_FILES);
+        ArrayList<String> results = state.getStringArrayList(STATE_SHOT_RESULTS);
+        int[] ids = state.getIntArray(STATE_SHOT_JOB_IDS);
+        burstEnded = state.getBoolean(STATE_BURST_ENDED);
+        if(files == null || results == null || ids == null)
+            return;
+
+        shotFiles.addAll(files);
+        shotResults.addAll(results);
+        for(int n = 0; n < ids.length; n++) {
+            shotJobs.add(null);
+            if(ids[n] == 0)
+                continue;
+            JobRegistry.Job shotJob = JobRegistry.getInstance().get(ids[n]);
+            if(shotJob != null) {
+                shotJobs.set(n, shotJob);
+                shotJob.attach(new ShotCallback(n));
+            }
+            else if(new File(files.get(n)).exists()) {
+                // The process was killed while processing; the photo is still on disk
+                processShot(n);
+            }
+        }
+        if(burstEnded)
+            endBurst();
+    }
+
+    private void endBurst() {
+        burstEnded = true;
+        for(JobRegistry.Job shotJob : shotJobs) {
+            if(shotJob != null) {
+                showProgress();
+                return;
+            }
+        }
+
+        dismissProgress();
+        ArrayList<String> paths = new ArrayList<>();
+        for(String result : shotResults) {
+            if(result != null)
+                paths.add(result);
+        }
+        if(!shotFiles.isEmpty() && paths.isEmpty()) {
+            setResult(RESULT_ERROR);
+        }
+        else if(shotFiles.isEmpty()) {
+            setResult(RESULT_CANCELED);
+        }
+        else {
+            if(paths.size() < shotFiles.size())
+                Log.w(TAG, (shotFiles.size() - paths.size()) + " of " + shotFiles.size() + " photos failed");
+            Intent i = new Intent();
+            i.putStringArrayListExtra(EXTRA_PHOTO_FILE_PATHS, paths);
+            setResult(RESULT_OK, i);
+        }
+        finish();
+    }
+
+    private void reportStartup() {
+        if(startNanos == 0)
+            return;
+        long nanos = System.nanoTime() - startNanos;
+        startNanos = 0;
+        if(ImageProcessor.verbose)
+            Log.v(TAG, "Camera dispatched " + nanos / 1000 + " us after the request");
+        StartupListener listener = startupListener;
+        if(listener != null)
+            listener.onCameraDispatched(nanos);
+    }
+
+    private void showProgress() {
+        if(progress == null) {
+            progress = new ProgressDialog.Builder(this)
+                    .setMessage("Пожалуйста подождите..")
+                    .setCancelable(false)
+                    .create();
+        }
         progress.show();
-        new ImageProcessor(this, outputFile.getAbsolutePath(), this, requiredSizePx, requiredSizeBytes).start();
+    }
+
+    private void dismissProgress() {
+        if(progress != null && progress.isShowing())
+            progress.dismiss();
+    }
+
+    private void returnResult() {
+        JobRegistry.Job callback = previewToken != 0 ? JobRegistry.getInstance().get(previewToken) : null;
+        if(callback != null) {
+            String path = outputFile.getAbsolutePath();
+            WorkerPool.getInstance().execute(new PreviewLoader(getApplicationContext(), path, previewToken));
+            WorkerPool.getInstance().execute(new ImageProcessor(getApplicationContext(), path,
+                    callback, options, WorkerPool.PRIORITY_USER));
+            Intent i = new Intent();
+            i.putExtra(EXTRA_RESULT_PENDING, true);
+            setResult(RESULT_OK, i);
+            finish();
+            return;
+        }
+
+        showProgress();
+        job = JobRegistry.getInstance().newJob();
+        job.attach(this);
+        if(outputTarget != null)
+            WorkerPool.getInstance().execute(new ImageProcessor(getApplicationContext(), outputFile.getAbsolutePath(),
+                    outputTarget, job, options, WorkerPool.PRIORITY_USER));
+        else
+            WorkerPool.getInstance().execute(new ImageProcessor(getApplicationContext(), outputFile.getAbsolutePath(),
+                    job, options, WorkerPool.PRIORITY_USER));
     }
 
     private boolean isPermissionGranted(String permission) {
@@ -172,24 +500,22 @@ public class CameraActivity extends AppCompatActivity implements ImageProcessor.
     }
 
     private void requestPermission(String permission, int code) {
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            awaitingResult = true;
             requestPermissions(new String[]{permission}, code);
-    }
-
-    private File createTempFile() throws IOException {
-        File tempFile = File.createTempFile("photo", ".jpg", getCacheDir());
-        tempFile.setWritable(true, false);
-        return tempFile;
+        }
     }
 
     private String generateFilename() {
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-        return "JPEG_" + timeStamp + "_.jpg";
+        String timeStamp = CaptureWarmup.getDateFormat().format(new Date());
+        // Shots of a burst can share a second
+        return "JPEG_" + timeStamp + "_" + (burst ? String.valueOf(shotFiles.size()) : "") + ".jpg";
     }
 
     @Override
     public void onImageProcessed(String filename) {
-        progress.dismiss();
+        job = null;
+        dismissProgress();
         Intent i = new Intent();
         if(filename != null) {
             i.putExtra(EXTRA_PHOTO_FILE_PATH, filename);
@@ -200,4 +526,47 @@ public class CameraActivity extends AppCompatActivity implements ImageProcessor.
         }
         finish();
     }
-}
\ No newline at end of file
+
+    @Override
+    public void onOutput(ProcessedImage image) {
+        job = null;
+        dismissProgress();
+        Intent i = new Intent();
+        i.putExtra(EXTRA_OUTPUT_TOKEN, OutputChannel.put(image));
+        setResult(RESULT_OK, i);
+        finish();
+    }
+
+    public interface StartupListener {
+        /**
+         * Called on the main thread.
+         *
+         * @param nanos from the pick request, i.e. the {@link ImagePickHelper#pickImage()} call with the
+         *              source dialog included, to the camera intent being dispatched
+         */
+        void onCameraDispatched(long nanos);
+    }
+
+    /**
+     * Result of one burst shot; the job keeps it until this activity attaches.
+     */
+    private class ShotCallback implements ImageProcessor.Callback {
+
+        private final int index;
+
+        ShotCallback(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onImageProcessed(String filename) {
+            // Nobody gets to see a temp photo that failed to process
+            if(filename == null && !saveInGallery)
+                new File(shotFiles.get(index)).delete();
+            shotResults.set(index, filename);
+            shotJobs.set(index, null);
+            if(burstEnded)
+                endBurst();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.arkty.androidcamera;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Does the disk and package manager work of starting the camera ahead of time, on the
+ * worker pool, so CameraActivity can dispatch the capture intent right from onCreate:
+ * creates the cache directory, resolves the camera app and loads the date format used
+ * for gallery file names. Everything taken from here falls back to doing the work in
+ * place if the warmup hasn't finished.
+ *
+ * The temp photo file itself is only created when a capture asks for it, so warmups
+ * that are never followed by a capture leave nothing behind.
+ */
+final class CaptureWarmup {
+
+    private static final String TAG = "CaptureWarmup";
+
+    // The activity shown when there is no default camera app
+    private static final String RESOLVER_PACKAGE = "android";
+
+    private static boolean resolved;
+    private static boolean cameraPresent;
+    private static ComponentName camera;
+    private static SimpleDateFormat dateFormat;
+    private static boolean running;
+
+    private CaptureWarmup() {
+    }
+
+    static synchronized void prewarm(Context context) {
+        if(running || (resolved && dateFormat != null))
+            return;
+        running = true;
+        final Context app = context.getApplicationContext();
+        WorkerPool.getInstance().execute(new WorkerPool.Task(WorkerPool.PRIORITY_BACKGROUND) {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                // Creates the directory on first use
+                app.getCacheDir();
+                ResolveInfo info = app.getPackageManager().resolveActivity(
+                        new Intent(MediaStore.ACTION_IMAGE_CAPTURE), PackageManager.MATCH_DEFAULT_ONLY);
+                boolean present = info != null && info.activityInfo != null;
+                // Several cameras and no default resolve to the chooser, which has to run
+                ComponentName component = present && !RESOLVER_PACKAGE.equals(info.activityInfo.packageName)
+                        ? new ComponentName(info.activityInfo.packageName, info.activityInfo.name) : null;
+                SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
+                synchronized (CaptureWarmup.class) {
+                    cameraPresent = present;
+                    camera = component;
+                    resolved = true;
+                    dateFormat = format;
+                    running = false;
+                }
+                if(ImageProcessor.verbose)
+                    Log.v(TAG, "Warmed up in " + (System.nanoTime() - start) / 1000 + " us, camera = " + component);
+            }
+
+            @Override
+            protected void onRejected() {
+                synchronized (CaptureWarmup.class) {
+                    running = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * A new empty file in the cache directory for the camera app to write the photo into.
+     */
+    static File newTempFile(Context context) throws IOException {
+        File file = File.createTempFile("photo", ".jpg", context.getCacheDir());
+        file.setWritable(true, false);
+        return file;
+    }
+
+    /**
+     * True if the camera app is known to be missing. False when it hasn't been resolved yet.
+     */
+    static synchronized boolean isCameraMissing() {
+        return resolved && !cameraPresent;
+    }
+
+    /**
+     * The default camera app, or null when unknown or the user hasn't picked a default.
+     */
+    static synchronized ComponentName getCamera() {
+        return camera;
+    }
+
+    /**
+     * Only to be used on the main thread.
+     */
+    static synchronized SimpleDateFormat getDateFormat() {
+        if(dateFormat == null)
+            dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
+        return dateFormat;
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.arkty.androidcamera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.github.arkty.androidcamera.core.ChannelCopier;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Copies picked content into local files, see {@link ChannelCopier}. Content Uris are
+ * opened as descriptors where the provider allows it, so regular files take the
+ * transferFrom path and only true streams are pumped through buffers.
+ */
+public final class CopyEngine {
+
+    private static final String TAG = "CopyEngine";
+
+    public static final int FSYNC_NONE = ChannelCopier.FSYNC_NONE;
+    public static final int FSYNC_ON_CLOSE = ChannelCopier.FSYNC_ON_CLOSE;
+
+    private static CopyEngine instance;
+
+    public static synchronized CopyEngine getInstance() {
+        if(instance == null)
+            instance = new CopyEngine();
+        return instance;
+    }
+
+    private final ChannelCopier copier = new ChannelCopier();
+
+    private CopyEngine() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            copier.setPreallocator(new FallocatePreallocator());
+    }
+
+    /**
+     * @param fsyncPolicy {@link #FSYNC_NONE} or {@link #FSYNC_ON_CLOSE}
+     */
+    public void setFsyncPolicy(int fsyncPolicy) {
+        copier.setFsyncPolicy(fsyncPolicy);
+    }
+
+    public long copy(Context context, Uri uri, File target, ProgressListener listener) throws IOException {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException | SecurityException e) {
+            Log.v(TAG, "No descriptor for " + uri + ", copying the stream");
+        }
+        if(pfd != null)
+            return copy(pfd, target, listener);
+
+        InputStream is = context.getContentResolver().openInputStream(uri);
+        if(is == null)
+            throw new FileNotFoundException(uri.toString());
+        try {
+            return copy(is, -1, target, listener);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Same as {@link #copy(Context, Uri, File, ProgressListener)}, feeding every byte into the
+     * digest on the way. Always takes the buffered path, since the bytes have to be seen.
+     */
+    public long copy(Context context, Uri uri, File target, MessageDigest digest, ProgressListener listener) throws IOException {
+        long length = -1;
+        InputStream is = null;
+        try {
+            ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+            if(pfd != null) {
+                length = pfd.getStatSize();
+                is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            }
+        } catch (FileNotFoundException | SecurityException e) {
+            Log.v(TAG, "No descriptor for " + uri + ", copying the stream");
+        }
+        if(is == null)
+            is = context.getContentResolver().openInputStream(uri);
+        if(is == null)
+            throw new FileNotFoundException(uri.toString());
+        try {
+            return copy(new DigestInputStream(is, digest), length, target, listener);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Copies the descriptor content and closes the descriptor.
+     */
+    public long copy(ParcelFileDescriptor source, File target, ProgressListener listener) throws IOException {
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+        try {
+            long start = System.nanoTime();
+            return logged(copier.copy(in.getChannel(), source.getStatSize(), target, listener), start);
+        } finally {
+            in.close();
+        }
+    }
+
+    public long copy(File source, File target, ProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        return logged(copier.copy(source, target, listener), start);
+    }
+
+    /**
+     * @param length expected length or -1 when unknown
+     */
+    public long copy(InputStream source, long length, File target, ProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        return logged(copier.copy(source, length, target, listener), start);
+    }
+
+    public ChannelCopier.Stats getTransferStats() {
+        return copier.getTransferStats();
+    }
+
+    public ChannelCopier.Stats getBufferedStats() {
+        return copier.getBufferedStats();
+    }
+
+    private static long logged(long bytes, long start) {
+        if(ImageProcessor.verbose)
+            Log.v(TAG, "Copied " + bytes + " bytes in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return bytes;
+    }
+
+    /**
+     * posix_fallocate reserves the blocks for real, so the copy can't run out of space
+     * halfway and the file ends up less fragmented. Only exposed from Lollipop on.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class FallocatePreallocator implements ChannelCopier.Preallocator {
+
+        @Override
+        public void allocate(FileDescriptor fd, long length) throws IOException {
+            try {
+                Os.posix_fallocate(fd, 0, length);
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    public interface ProgressListener extends ChannelCopier.ProgressListener {
+    }
+}
@@ -1,25 +1,45 @@
 package com.github.arkty.androidcamera;
 
+import android.annotation.TargetApi;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.ClipData;
+import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 
+import java.util.ArrayList;
+
 /**
  * Author: Andrey Khitryy
  * Email: andrey.khitryy@gmail.com
  */
 
-public class GalleryActivity extends AppCompatActivity implements ImageProcessor.Callback{
+public class GalleryActivity extends AppCompatActivity implements ImageProcessor.Callback, OutputTarget.Callback{
 
     private static final String TAG = "GalleryActivity";
 
     private static final String EXTRA_REQUIRED_SIZE_PX = "requiredSizePx";
     private static final String EXTRA_REQUIRED_SIZE_BYTES = "requiredSizeBytes";
+    private static final String EXTRA_OPTIONS = "processingOptions";
+    private static final String EXTRA_MULTIPLE = "multiple";
+    private static final String EXTRA_PREVIEW_TOKEN = "previewToken";
+    private static final String EXTRA_OUTPUT_TARGET = "outputTarget";
+    // OutputChannel token of the ProcessedImage, set on RESULT_OK for an output target
+    static final String EXTRA_OUTPUT_TOKEN = "outputToken";
+    // Set on RESULT_OK when the file follows through the preview job
+    static final String EXTRA_RESULT_PENDING = "resultPending";
     public static final String EXTRA_PHOTO_FILE_PATH = "extraPhotoFilePath";
+    public static final String EXTRA_PHOTO_URIS = "extraPhotoUris";
+
+    private static final String STATE_PICKER_LAUNCHED = "pickerLaunched";
+    private static final String STATE_JOB_ID = "jobId";
+    private static final String STATE_PICKED_URI = "pickedUri";
 
     private static final int REQUEST_GALLERY = 128;
     public static final int RESULT_ERROR = 1;
@@ -31,45 +51,126 @@ public class GalleryActivity extends AppCompatActivity implements ImageProcessor
         context.startActivityForResult(i, requestCode);
     }
 
-    private int requiredSizePx;
-    private int requiredSizeBytes;
+    public static void startForResult(AppCompatActivity context, int requestCode, ProcessingOptions options) {
+        startForResult(context, requestCode, options, 0, 0);
+    }
+
+    /**
+     * With the id of a preview job in the {@link JobRegistry} the activity finishes as soon
+     * as an image is picked and both the preview and the processed file are delivered through
+     * that job. With an {@link OutputChannel} token of an {@link OutputTarget} the result is
+     * a ProcessedImage handed back through that channel instead of a file.
+     */
+    static void startForResult(AppCompatActivity context, int requestCode, ProcessingOptions options, int previewToken,
+                               int outputTargetToken) {
+        Intent i = new Intent(context, com.github.arkty.androidcamera.GalleryActivity.class);
+        i.putExtra(EXTRA_OPTIONS, options);
+        i.putExtra(EXTRA_PREVIEW_TOKEN, previewToken);
+        i.putExtra(EXTRA_OUTPUT_TARGET, outputTargetToken);
+        context.startActivityForResult(i, requestCode);
+    }
+
+    /**
+     * Lets the user select several images. The result carries their Uris in
+     * {@link #EXTRA_PHOTO_URIS}; processing is left to the caller, see {@link BatchProcessor}.
+     */
+    public static void startForMultipleResult(AppCompatActivity context, int requestCode) {
+        Intent i = new Intent(context, com.github.arkty.androidcamera.GalleryActivity.class);
+        i.putExtra(EXTRA_MULTIPLE, true);
+        context.startActivityForResult(i, requestCode);
+    }
+
+    private ProcessingOptions options;
+    private boolean multiple;
+    private int previewToken;
+    private OutputTarget outputTarget;
 
     private UriResolver uriResolver;
     private Dialog progress;
 
+    private boolean pickerLaunched;
+    private JobRegistry.Job job;
+    private Uri pickedUri;
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Intent i = getIntent();
-        requiredSizePx = i.getIntExtra(EXTRA_REQUIRED_SIZE_PX, 0);
-        requiredSizeBytes = i.getIntExtra(EXTRA_REQUIRED_SIZE_BYTES, 0);
+        options = i.getParcelableExtra(EXTRA_OPTIONS);
+        if(options == null)
+            options = ProcessingOptions.legacy(i.getIntExtra(EXTRA_REQUIRED_SIZE_PX, 0), i.getIntExtra(EXTRA_REQUIRED_SIZE_BYTES, 0));
+        multiple = i.getBooleanExtra(EXTRA_MULTIPLE, false);
+        previewToken = i.getIntExtra(EXTRA_PREVIEW_TOKEN, 0);
+        outputTarget = (OutputTarget) OutputChannel.get(i.getIntExtra(EXTRA_OUTPUT_TARGET, 0));
 
-        uriResolver = new UriResolver(this);
+        uriResolver = new UriResolver(getApplicationContext());
 
-        progress = new ProgressDialog.Builder(this)
-                .setMessage("Пожалуйста подождите..")
-                .setCancelable(false)
-                .create();
+        if(savedInstanceState != null) {
+            pickerLaunched = savedInstanceState.getBoolean(STATE_PICKER_LAUNCHED);
+            pickedUri = savedInstanceState.getParcelable(STATE_PICKED_URI);
+            job = JobRegistry.getInstance().get(savedInstanceState.getInt(STATE_JOB_ID));
+            if(job != null) {
+                showProgress();
+                job.attach(this);
+                return;
+            }
+            if(pickerLaunched) {
+                // The picker result will be delivered to this instance
+                return;
+            }
+            if(pickedUri != null) {
+                // The process was killed while processing, start over from the picked Uri
+                process(pickedUri);
+                return;
+            }
+        }
 
-        Intent intent = new Intent(Intent.ACTION_PICK);
+        Intent intent;
+        if(multiple && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        }
+        else {
+            intent = new Intent(Intent.ACTION_PICK);
+        }
         intent.setType("image/*");
+        pickerLaunched = true;
         startActivityForResult(intent, REQUEST_GALLERY);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_PICKER_LAUNCHED, pickerLaunched);
+        outState.putParcelable(STATE_PICKED_URI, pickedUri);
+        if(job != null)
+            outState.putInt(STATE_JOB_ID, job.id);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if(job != null) {
+            job.detach();
+            if(isFinishing())
+                JobRegistry.getInstance().remove(job.id);
+        }
+        dismissProgress();
+        super.onDestroy();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
 
         if(requestCode == REQUEST_GALLERY) {
-            if(resultCode == RESULT_OK) {
-                String filepath = uriResolver.getAbsolutePath(data.getData());
-                if(filepath != null) {
-                    returnResult(filepath);
-                }
-                else {
-                    setResult(RESULT_ERROR);
-                    finish();
-                }
+            pickerLaunched = false;
+            if(resultCode == RESULT_OK && multiple) {
+                returnUris(data);
+            }
+            else if(resultCode == RESULT_OK) {
+                pickedUri = data.getData();
+                process(pickedUri);
             }
             else {
                 setResult(RESULT_CANCELED);
@@ -78,15 +179,68 @@ public class GalleryActivity extends AppCompatActivity implements ImageProcessor
         }
     }
 
-    private void returnResult(String filepath) {
+    private void process(Uri uri) {
+        JobRegistry.Job callback = previewToken != 0 ? JobRegistry.getInstance().get(previewToken) : null;
+        if(callback != null) {
+            Context context = getApplicationContext();
+            WorkerPool.getInstance().execute(new PreviewLoader(context, uri, previewToken));
+            uriResolver.resolvePathAsync(uri, new ProcessResolved(context, callback, null, null, options));
+            Intent i = new Intent();
+            i.putExtra(EXTRA_RESULT_PENDING, true);
+            setResult(RESULT_OK, i);
+            finish();
+            return;
+        }
+
+        showProgress();
+        job = JobRegistry.getInstance().newJob();
+        job.attach(this);
+        uriResolver.resolvePathAsync(uri, new ProcessResolved(getApplicationContext(), job, outputTarget, job, options));
+    }
+
+    private void showProgress() {
+        if(progress == null) {
+            progress = new ProgressDialog.Builder(this)
+                    .setMessage("Пожалуйста подождите..")
+                    .setCancelable(false)
+                    .create();
+        }
         progress.show();
-        new ImageProcessor(this, filepath, this, requiredSizePx, requiredSizeBytes).start();
     }
 
-    @Override
-    public void onImageProcessed(String filename) {
+    private void dismissProgress() {
         if(progress != null && progress.isShowing())
             progress.dismiss();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void returnUris(Intent data) {
+        ArrayList<Uri> uris = new ArrayList<>();
+        ClipData clip = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? data.getClipData() : null;
+        if(clip != null) {
+            for(int n = 0; n < clip.getItemCount(); n++) {
+                uris.add(clip.getItemAt(n).getUri());
+            }
+        }
+        else if(data.getData() != null) {
+            uris.add(data.getData());
+        }
+
+        Intent i = new Intent();
+        i.putParcelableArrayListExtra(EXTRA_PHOTO_URIS, uris);
+        if(clip != null) {
+            // Hand the read grants over together with the Uris
+            i.setClipData(clip);
+            i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+        setResult(RESULT_OK, i);
+        finish();
+    }
+
+    @Override
+    public void onImageProcessed(String filename) {
+        job = null;
+        dismissProgress();
         Intent i = new Intent();
         if(filename != null) {
             i.putExtra(EXTRA_PHOTO_FILE_PATH, filename);
@@ -97,4 +251,53 @@ public class GalleryActivity extends AppCompatActivity implements ImageProcessor
         }
         finish();
     }
+
+    @Override
+    public void onOutput(ProcessedImage image) {
+        job = null;
+        dismissProgress();
+        Intent i = new Intent();
+        i.putExtra(EXTRA_OUTPUT_TOKEN, OutputChannel.put(image));
+        setResult(RESULT_OK, i);
+        finish();
+    }
+
+    /**
+     * Starts processing once the picked Uri is resolved. Holds no reference to the activity,
+     * which may be recreated in the meantime; the result goes to the job or the preview channel.
+     */
+    private static class ProcessResolved implements UriResolver.OnResolvedListener {
+
+        private final Context context;
+        private final ImageProcessor.Callback job;
+        private final OutputTarget target;
+        private final OutputTarget.Callback outputCallback;
+        private final ProcessingOptions options;
+
+        ProcessResolved(Context context, ImageProcessor.Callback job, OutputTarget target,
+                        OutputTarget.Callback outputCallback, ProcessingOptions options) {
+            this.context = context;
+            this.job = job;
+            this.target = target;
+            this.outputCallback = outputCallback;
+            this.options = options;
+        }
+
+        @Override
+        public void onResolved(Uri uri, String filepath) {
+            if(filepath != null) {
+                WorkerPool.getInstance().execute(target != null
+                        ? new ImageProcessor(context, filepath, target, outputCallback, options, WorkerPool.PRIORITY_USER)
+                        : new ImageProcessor(context, filepath, job, options, WorkerPool.PRIORITY_USER));
+            }
+            else if(uri.getAuthority() != null) {
+                WorkerPool.getInstance().execute(target != null
+                        ? new ImageProcessor(context, uri, target, outputCallback, options, WorkerPool.PRIORITY_USER)
+                        : new ImageProcessor(context, uri, job, options, WorkerPool.PRIORITY_USER));
+            }
+            else {
+                job.onImageProcessed(null);
+            }
+        }
+    }
 }
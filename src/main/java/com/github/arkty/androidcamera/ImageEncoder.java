@@ -0,0 +1,171 @@
+package com.github.arkty.androidcamera;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.github.arkty.androidcamera.core.BudgetSearch;
+import com.github.arkty.androidcamera.core.EncodeBuffer;
+import com.github.arkty.androidcamera.core.ImageHeader;
+import com.github.arkty.androidcamera.core.QualitySearch;
+
+/**
+ * Encodes the processed bitmap in the requested output format, within the byte budget if
+ * there is one. For {@link ProcessingOptions#OUTPUT_AUTO} every candidate format is
+ * encoded and the best result is kept: one that fits the budget, then the most pixels,
+ * then the fewest bytes.
+ *
+ * With a minimum SSIM the quality of lossy formats is capped at the lowest one that
+ * reaches it, see {@link QualitySearch}.
+ */
+class ImageEncoder {
+
+    private final int outputFormat;
+    private final int budgetBytes;
+    private final float minSsim;
+    private final BitmapPool pool;
+
+    private int format;
+    private int quality;
+    private double ssim;
+    private Bitmap bitmap;
+
+    ImageEncoder(int outputFormat, int budgetBytes, float minSsim, BitmapPool pool) {
+        this.outputFormat = outputFormat;
+        this.budgetBytes = budgetBytes;
+        this.minSsim = minSsim;
+        this.pool = pool;
+    }
+
+    static String extension(int format) {
+        if(format == ImageHeader.FORMAT_PNG)
+            return ".png";
+        if(format == ImageHeader.FORMAT_WEBP)
+            return ".webp";
+        return ".jpg";
+    }
+
+    /**
+     * Returns the chosen encoding. With a budget and a single candidate format the buffer
+     * belongs to the calling thread, see {@link ByteBudgetEncoder#encode}. {@link #getBitmap()}
+     * is the bitmap that was actually encoded; when it differs from the argument the caller
+     * owns it.
+     */
+    EncodeBuffer encode(Bitmap source) {
+        int[] candidates = candidates(outputFormat, source.hasAlpha());
+        EncodeBuffer best = null;
+        boolean bestFits = false;
+        bitmap = source;
+
+        for(int candidate : candidates) {
+            EncodeBuffer encoded;
+            int q;
+            boolean fits;
+            Bitmap encodedBitmap;
+            double score = 0;
+            int maxQuality = BudgetSearch.MAX_QUALITY;
+            QualitySearch qualitySearch = null;
+            BitmapProxy proxy = null;
+            if(minSsim > 0 && candidate != ImageHeader.FORMAT_PNG) {
+                qualitySearch = new QualitySearch(minSsim, candidate);
+                proxy = new BitmapProxy(source);
+                maxQuality = qualitySearch.search(proxy);
+                score = qualitySearch.getScore();
+            }
+
+            if(budgetBytes > 0) {
+                ByteBudgetEncoder encoder = new ByteBudgetEncoder(budgetBytes, candidate, maxQuality, pool);
+                encoded = encoder.encode(source);
+                q = encoder.getQuality();
+                fits = encoder.fits();
+                encodedBitmap = encoder.getBitmap();
+                // The next search reuses the thread's scratch buffers
+                if(candidates.length > 1)
+                    encoded = copyOf(encoded);
+            }
+            else {
+                encoded = new EncodeBuffer(source.getRowBytes() * source.getHeight() / 8);
+                q = candidate == ImageHeader.FORMAT_PNG ? BudgetSearch.LOSSLESS_QUALITY : maxQuality;
+                source.compress(ByteBudgetEncoder.compressFormat(candidate), q, encoded);
+                fits = true;
+                encodedBitmap = source;
+            }
+            if(qualitySearch != null) {
+                // The budget may have pushed the quality below the one found
+                if(q != maxQuality)
+                    score = qualitySearch.score(q);
+                proxy.release();
+            }
+
+            if(best == null || isBetter(fits, encodedBitmap, encoded, bestFits, best)) {
+                if(bitmap != source && bitmap != encodedBitmap)
+                    pool.put(bitmap);
+                best = encoded;
+                bestFits = fits;
+                format = candidate;
+                quality = q;
+                ssim = score;
+                bitmap = encodedBitmap;
+            }
+            else if(encodedBitmap != source) {
+                pool.put(encodedBitmap);
+            }
+        }
+        return best;
+    }
+
+    int getFormat() {
+        return format;
+    }
+
+    int getQuality() {
+        return quality;
+    }
+
+    /**
+     * SSIM of the chosen encoding on the proxy, 0 without a quality target.
+     */
+    double getSsim() {
+        return ssim;
+    }
+
+    Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    private boolean isBetter(boolean fits, Bitmap encodedBitmap, EncodeBuffer encoded,
+                             boolean bestFits, EncodeBuffer best) {
+        if(fits != bestFits)
+            return fits;
+        long pixels = (long) encodedBitmap.getWidth() * encodedBitmap.getHeight();
+        long bestPixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        if(pixels != bestPixels)
+            return pixels > bestPixels;
+        return encoded.size() < best.size();
+    }
+
+    private static int[] candidates(int outputFormat, boolean hasAlpha) {
+        boolean webp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+        // Transparent WebP can be written from JellyBean MR2
+        boolean webpAlpha = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        switch (outputFormat) {
+            case ProcessingOptions.OUTPUT_PNG:
+                return new int[]{ImageHeader.FORMAT_PNG};
+            case ProcessingOptions.OUTPUT_WEBP:
+                return new int[]{webp ? ImageHeader.FORMAT_WEBP : ImageHeader.FORMAT_JPEG};
+            case ProcessingOptions.OUTPUT_AUTO:
+                if(hasAlpha)
+                    return webpAlpha ? new int[]{ImageHeader.FORMAT_WEBP, ImageHeader.FORMAT_PNG}
+                            : new int[]{ImageHeader.FORMAT_PNG};
+                return webp ? new int[]{ImageHeader.FORMAT_WEBP, ImageHeader.FORMAT_JPEG}
+                        : new int[]{ImageHeader.FORMAT_JPEG};
+            default:
+                return new int[]{ImageHeader.FORMAT_JPEG};
+        }
+    }
+
+    private static EncodeBuffer copyOf(EncodeBuffer buffer) {
+        EncodeBuffer copy = new EncodeBuffer(buffer.size());
+        copy.write(buffer.array(), 0, buffer.size());
+        return copy;
+    }
+}
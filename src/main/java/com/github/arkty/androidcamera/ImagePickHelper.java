@@ -2,9 +2,16 @@ package com.github.arkty.androidcamera;
 
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Author: Andrey Khitryy
  * Email: andrey.khitryy@gmail.com
@@ -18,31 +25,98 @@ public class ImagePickHelper {
 
     private static final int REQUEST_CAMERA = 173;
     private static final int REQUEST_GALLERY = 179;
+    private static final int REQUEST_GALLERY_MULTIPLE = 181;
+    private static final int REQUEST_CAMERA_BURST = 191;
+
+    private static final String STATE_PREVIEW_TOKEN = "ImagePickHelper.previewToken";
+    private static final String STATE_PREVIEW_JOBS = "ImagePickHelper.previewJobs";
 
     private AppCompatActivity activity;
     private OnPickListener listener;
+    private OnMultiPickListener multiPickListener;
+    private OnBurstListener burstListener;
+    private OnPreviewListener previewListener;
+    // Job of the pick whose activity hasn't returned yet
+    private int previewToken;
+    // Jobs still owing this helper their file, the pick in flight included
+    private ArrayList<Integer> previewJobs = new ArrayList<>();
+    private OutputTarget outputTarget;
+    private OnOutputListener outputListener;
+    private int outputTargetToken;
+    // ImageProcessor only holds its callback weakly, this keeps a running batch alive
+    private BatchProcessor batch;
 
     private String galleryTitle = "Выбрать из галереи";
     private String cameraTitle = "Сделать снимок";
     private String needMorePermissionsMessage = "Для того, чтобы сделать фото, приложению нужны права для доступа к камере и внутреннему хранилищу.\n" +
             "Вы можете предоставить доступ в настройках Android.";
 
-    private int requiredSizePx = 0;
-    private int requiredSizeBytes = 0;
+    private ProcessingOptions options = new ProcessingOptions();
     private boolean saveToGallery = false;
     private String outputFilename = null;
 
     public ImagePickHelper(AppCompatActivity activity, OnPickListener listener) {
         this.activity = activity;
         this.listener = listener;
+        // Cache directory, camera app and date format are ready by the time the user picks
+        CaptureWarmup.prewarm(activity);
     }
 
+    /**
+     * Legacy square limit: the shorter side of the result becomes requiredSizePx.
+     */
     public void setRequiredSizePx(int requiredSizePx) {
-        this.requiredSizePx = requiredSizePx;
+        options.setMaxSize(requiredSizePx, requiredSizePx);
+        options.setScaleMode(ProcessingOptions.SCALE_FILL);
+    }
+
+    /**
+     * @param scaleMode one of {@link ProcessingOptions#SCALE_FIT}, {@link ProcessingOptions#SCALE_FILL},
+     *                  {@link ProcessingOptions#SCALE_CENTER_CROP}
+     */
+    public void setRequiredSize(int maxWidth, int maxHeight, int scaleMode) {
+        options.setMaxSize(maxWidth, maxHeight);
+        options.setScaleMode(scaleMode);
     }
 
     public void setRequiredSizeBytes(int requiredSizeBytes) {
-        this.requiredSizeBytes = requiredSizeBytes;
+        options.setRequiredSizeBytes(requiredSizeBytes);
+    }
+
+    /**
+     * @param outputFormat one of {@link ProcessingOptions#OUTPUT_JPEG} (default), {@link ProcessingOptions#OUTPUT_WEBP},
+     *                     {@link ProcessingOptions#OUTPUT_PNG}, {@link ProcessingOptions#OUTPUT_AUTO}
+     */
+    public void setOutputFormat(int outputFormat) {
+        options.setOutputFormat(outputFormat);
+    }
+
+    /**
+     * @see ProcessingOptions#setMinSsim(float)
+     */
+    public void setMinSsim(float minSsim) {
+        options.setMinSsim(minSsim);
+    }
+
+    /**
+     * @see ProcessingOptions#setResampleFilter(int)
+     */
+    public void setResampleFilter(int resampleFilter) {
+        options.setResampleFilter(resampleFilter);
+    }
+
+    /**
+     * @see ProcessingOptions#setKeptMetadata(int)
+     */
+    public void setKeptMetadata(int keptMetadata) {
+        options.setKeptMetadata(keptMetadata);
+    }
+
+    /**
+     * @see ProcessingOptions#setStrippedExifTags(int...)
+     */
+    public void setStrippedExifTags(int... strippedExifTags) {
+        options.setStrippedExifTags(strippedExifTags);
     }
 
     public void setSaveToGallery(boolean saveToGallery) {
@@ -53,6 +127,36 @@ public class ImagePickHelper {
         this.outputFilename = outputFilename;
     }
 
+    public void setOnMultiPickListener(OnMultiPickListener multiPickListener) {
+        this.multiPickListener = multiPickListener;
+    }
+
+    public void setOnBurstListener(OnBurstListener burstListener) {
+        this.burstListener = burstListener;
+    }
+
+    /**
+     * Delivers a small preview of the picked image before the processed file. The activity
+     * returns right away and {@link OnPickListener#onImagePicked(String)} follows once
+     * processing is done. Forward {@link #onSaveInstanceState(Bundle)} and
+     * {@link #onRestoreInstanceState(Bundle)} so that a helper of a recreated activity
+     * picks up the results still in flight.
+     */
+    public void setOnPreviewListener(OnPreviewListener previewListener) {
+        this.previewListener = previewListener;
+    }
+
+    /**
+     * Delivers the encoded result as a {@link ProcessedImage} to the listener instead of a
+     * file path to {@link OnPickListener#onImagePicked(String)}. Cancellations and errors
+     * still go to the OnPickListener. Takes precedence over the preview listener. Null
+     * goes back to files.
+     */
+    public void setOutputTarget(OutputTarget outputTarget, OnOutputListener outputListener) {
+        this.outputTarget = outputTarget;
+        this.outputListener = outputListener;
+    }
+
     public void setNeedMorePermissionsMessage(int message) {
         this.needMorePermissionsMessage = activity.getString(message);
     }
@@ -63,21 +167,124 @@ public class ImagePickHelper {
     }
 
     public void pickImage() {
-
+        // Camera startup is measured from here, the user's choice in the dialog included
+        final long startNanos = System.nanoTime();
         new AlertDialog.Builder(activity).setItems(new String[]{galleryTitle, cameraTitle}, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
+                if(outputTargetToken != 0)
+                    OutputChannel.take(outputTargetToken);
+                outputTargetToken = outputTarget != null ? OutputChannel.put(outputTarget) : 0;
+                int token = outputTarget == null ? registerPreview() : 0;
                 if(which == 0) {
-                    GalleryActivity.startForResult(activity, REQUEST_GALLERY, requiredSizeBytes, requiredSizePx);
+                    GalleryActivity.startForResult(activity, REQUEST_GALLERY, options, token, outputTargetToken);
                 }
                 else {
-                    com.github.arkty.androidcamera.CameraActivity.startForResult(activity, REQUEST_CAMERA, requiredSizeBytes, requiredSizePx, saveToGallery, outputFilename);
+                    com.github.arkty.androidcamera.CameraActivity.startForResult(activity, REQUEST_CAMERA, options, saveToGallery, outputFilename,
+                            token, outputTargetToken, startNanos);
                 }
             }
         }).create().show();
     }
 
+    /**
+     * Lets the user select several images in the gallery. They are processed in parallel and
+     * delivered one by one to the {@link OnMultiPickListener}.
+     */
+    public void pickImages() {
+        GalleryActivity.startForMultipleResult(activity, REQUEST_GALLERY_MULTIPLE);
+    }
+
+    /**
+     * Stops a multi-pick batch from starting more images. Images already being processed
+     * finish, but nothing more is delivered to the {@link OnMultiPickListener}.
+     */
+    public void cancelBatch() {
+        if(batch != null) {
+            batch.cancel();
+            batch = null;
+        }
+    }
+
+    /**
+     * Opens the camera again after every photo until the user backs out. Photos are processed
+     * while the next one is taken and delivered together to the {@link OnBurstListener}.
+     */
+    public void takePhotos() {
+        com.github.arkty.androidcamera.CameraActivity.startForBurstResult(activity, REQUEST_CAMERA_BURST, options, saveToGallery);
+    }
+
+    private int registerPreview() {
+        if(previewListener == null) {
+            previewToken = 0;
+            return 0;
+        }
+        // Earlier picks still being processed keep their jobs and deliver as usual
+        JobRegistry.Job job = JobRegistry.getInstance().newJob();
+        attachPreview(job);
+        previewToken = job.id;
+        return previewToken;
+    }
+
+    private void attachPreview(JobRegistry.Job job) {
+        if(!previewJobs.contains(job.id))
+            previewJobs.add(job.id);
+        job.attach(new PreviewReceiver(this, job.id));
+    }
+
+    public void onSaveInstanceState(Bundle outState) {
+        outState.putInt(STATE_PREVIEW_TOKEN, previewToken);
+        outState.putIntegerArrayList(STATE_PREVIEW_JOBS, previewJobs);
+    }
+
+    /**
+     * Attaches to the preview jobs of the previous helper, so their previews and files come
+     * here. Jobs lost with the process are reported as errors.
+     */
+    public void onRestoreInstanceState(Bundle savedInstanceState) {
+        if(savedInstanceState == null)
+            return;
+        previewToken = savedInstanceState.getInt(STATE_PREVIEW_TOKEN);
+        ArrayList<Integer> ids = savedInstanceState.getIntegerArrayList(STATE_PREVIEW_JOBS);
+        if(ids == null)
+            return;
+        for(int id : ids) {
+            JobRegistry.Job job = JobRegistry.getInstance().get(id);
+            if(job != null)
+                attachPreview(job);
+            // Without its job the pick in flight falls back to returning the file itself
+            else if(id != previewToken)
+                listener.onPickCancelled(REASON_ERROR);
+        }
+    }
+
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if(requestCode == REQUEST_CAMERA || requestCode == REQUEST_GALLERY) {
+            if(resultCode == GalleryActivity.RESULT_OK && data != null
+                    && data.getBooleanExtra(GalleryActivity.EXTRA_RESULT_PENDING, false)) {
+                // The file arrives through the preview job
+                previewToken = 0;
+                return;
+            }
+            if(previewToken != 0) {
+                JobRegistry.getInstance().remove(previewToken);
+                previewJobs.remove(Integer.valueOf(previewToken));
+                previewToken = 0;
+            }
+            if(outputTargetToken != 0) {
+                OutputChannel.take(outputTargetToken);
+                outputTargetToken = 0;
+            }
+            if(resultCode == GalleryActivity.RESULT_OK && data != null && data.hasExtra(GalleryActivity.EXTRA_OUTPUT_TOKEN)) {
+                ProcessedImage image = (ProcessedImage) OutputChannel.take(data.getIntExtra(GalleryActivity.EXTRA_OUTPUT_TOKEN, 0));
+                if(image != null)
+                    outputListener.onImageOutput(image);
+                else
+                    listener.onPickCancelled(REASON_ERROR);
+                return;
+            }
+        }
+
         if(requestCode == REQUEST_CAMERA) {
             if(resultCode == com.github.arkty.androidcamera.CameraActivity.RESULT_OK) {
                 String filename = data.getExtras().getString(com.github.arkty.androidcamera.CameraActivity.EXTRA_PHOTO_FILE_PATH);
@@ -108,10 +315,134 @@ public class ImagePickHelper {
                 listener.onPickCancelled(REASON_ERROR);
             }
         }
+        else if(requestCode == REQUEST_GALLERY_MULTIPLE) {
+            if(resultCode == GalleryActivity.RESULT_OK) {
+                ArrayList<Uri> uris = data.getParcelableArrayListExtra(GalleryActivity.EXTRA_PHOTO_URIS);
+                cancelBatch();
+                batch = new BatchProcessor(activity, uris, options, new BatchListener(multiPickListener));
+                batch.start();
+            }
+            else if(resultCode == GalleryActivity.RESULT_CANCELED) {
+                multiPickListener.onPickCancelled(REASON_CANCELLED);
+            }
+            else {
+                multiPickListener.onPickCancelled(REASON_ERROR);
+            }
+        }
+        else if(requestCode == REQUEST_CAMERA_BURST) {
+            if(resultCode == com.github.arkty.androidcamera.CameraActivity.RESULT_OK) {
+                burstListener.onPhotosTaken(data.getStringArrayListExtra(com.github.arkty.androidcamera.CameraActivity.EXTRA_PHOTO_FILE_PATHS));
+            }
+            else if(resultCode == com.github.arkty.androidcamera.CameraActivity.RESULT_CAMERA_PERMISSION_DENIED ||
+                    resultCode == com.github.arkty.androidcamera.CameraActivity.RESULT_STORAGE_PERMISSION_DENIED) {
+                new AlertDialog.Builder(activity).setMessage(needMorePermissionsMessage).create().show();
+                burstListener.onPickCancelled(REASON_PERMISSIONS);
+            }
+            else if(resultCode == com.github.arkty.androidcamera.CameraActivity.RESULT_CANCELED) {
+                burstListener.onPickCancelled(REASON_CANCELLED);
+            }
+            else {
+                burstListener.onPickCancelled(REASON_ERROR);
+            }
+        }
+    }
+
+    /**
+     * Forwards to the multi-pick listener and lets go of the batch once it is done.
+     */
+    private class BatchListener implements BatchProcessor.Listener {
+
+        private final OnMultiPickListener listener;
+
+        BatchListener(OnMultiPickListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onImageProcessed(int index, String filename) {
+            listener.onImageProcessed(index, filename);
+        }
+
+        @Override
+        public void onImageFailed(int index, Uri uri) {
+            listener.onImageFailed(index, uri);
+        }
+
+        @Override
+        public void onProgress(int completed, int total) {
+            listener.onProgress(completed, total);
+        }
+
+        @Override
+        public void onBatchFinished(int succeeded, int failed) {
+            batch = null;
+            listener.onBatchFinished(succeeded, failed);
+        }
+    }
+
+    /**
+     * Only weakly refers to the helper: the job outlives the activity, and a recreated one
+     * attaches a receiver of its own.
+     */
+    private static class PreviewReceiver implements JobRegistry.PreviewCallback {
+
+        private final WeakReference<ImagePickHelper> helper;
+        private final int id;
+
+        PreviewReceiver(ImagePickHelper helper, int id) {
+            this.helper = new WeakReference<>(helper);
+            this.id = id;
+        }
+
+        @Override
+        public void onPreview(Bitmap preview) {
+            ImagePickHelper h = helper.get();
+            if(h != null && h.previewListener != null)
+                h.previewListener.onPreview(preview);
+        }
+
+        @Override
+        public void onImageProcessed(String filename) {
+            ImagePickHelper h = helper.get();
+            if(h == null)
+                return;
+            h.previewJobs.remove(Integer.valueOf(id));
+            if(filename != null)
+                h.listener.onImagePicked(filename);
+            else
+                h.listener.onPickCancelled(REASON_ERROR);
+        }
     }
 
     public interface OnPickListener {
         void onImagePicked(String filename);
         void onPickCancelled(int reason);
     }
+
+    public interface OnOutputListener {
+        /**
+         * The image belongs to the listener, recycle it when done.
+         */
+        void onImageOutput(ProcessedImage image);
+    }
+
+    public interface OnPreviewListener {
+        /**
+         * Called on the main thread with a small upright bitmap, usually well before the
+         * processed file. Not called if the file happens to be ready first.
+         */
+        void onPreview(Bitmap preview);
+    }
+
+    public interface OnMultiPickListener extends BatchProcessor.Listener {
+        void onPickCancelled(int reason);
+    }
+
+    public interface OnBurstListener {
+        /**
+         * Processed files in the order the photos were taken.
+         */
+        void onPhotosTaken(List<String> filenames);
+        void onPickCancelled(int reason);
+    }
 }
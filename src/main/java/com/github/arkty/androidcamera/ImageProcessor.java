@@ -1,16 +1,34 @@
 package com.github.arkty.androidcamera;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import com.github.arkty.androidcamera.core.DecodePlanner;
+import com.github.arkty.androidcamera.core.EncodeBuffer;
+import com.github.arkty.androidcamera.core.ImageHeader;
+import com.github.arkty.androidcamera.core.JpegMetadata;
+import com.github.arkty.androidcamera.core.Orientation;
+import com.github.arkty.androidcamera.core.Resampler;
+import com.github.arkty.androidcamera.core.SizeCalculator;
+
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 
 /**
@@ -18,108 +36,722 @@ import java.lang.ref.WeakReference;
  * Email: andrey.khitryy@gmail.com
  */
 
-public class ImageProcessor extends Thread {
+public class ImageProcessor extends WorkerPool.Task {
 
     private static final String TAG = "ImageProcessor";
 
+    private static final int HEADER_BUFFER_SIZE = 16 * 1024;
+    private static final float DEFAULT_DECODE_HEAP_SHARE = 0.25f;
+
     private final Context context;
-    private final String filename;
+    private final ImageSource source;
     private final WeakReference<Callback> callback;
-    private final int requiredSizePx;
-    private final int requiredSizeBytes;
+    private final OutputTarget target;
+    private final WeakReference<OutputTarget.Callback> outputCallback;
+    private final ProcessingOptions options;
+    private final BitmapPool pool;
+    private final ResultCache cache;
+    private JobMetrics metrics;
+    // Source segments to carry over, collected by the header probe
+    private JpegMetadata metadata;
+
+    private static volatile JobMetrics.Listener metricsListener;
+    private static volatile float decodeHeapShare = DEFAULT_DECODE_HEAP_SHARE;
+    static volatile boolean verbose;
 
     public ImageProcessor(Context context, String filename, Callback callback, int requiredSizePx,
                           int requiredSizeBytes) {
+        this(context, filename, callback, ProcessingOptions.legacy(requiredSizePx, requiredSizeBytes),
+                WorkerPool.PRIORITY_USER);
+    }
+
+    public ImageProcessor(Context context, String filename, Callback callback, ProcessingOptions options,
+                          int priority) {
+        this(context, ImageSource.of(filename), callback, null, null, options, priority);
+    }
+
+    /**
+     * Processes a content Uri without copying it to a file first.
+     */
+    public ImageProcessor(Context context, Uri uri, Callback callback, ProcessingOptions options,
+                          int priority) {
+        this(context, ImageSource.of(context, uri), callback, null, null, options, priority);
+    }
+
+    /**
+     * Hands the encoded result to the target instead of writing a file.
+     */
+    public ImageProcessor(Context context, String filename, OutputTarget target, OutputTarget.Callback callback,
+                          ProcessingOptions options, int priority) {
+        this(context, ImageSource.of(filename), null, target, callback, options, priority);
+    }
+
+    public ImageProcessor(Context context, Uri uri, OutputTarget target, OutputTarget.Callback callback,
+                          ProcessingOptions options, int priority) {
+        this(context, ImageSource.of(context, uri), null, target, callback, options, priority);
+    }
+
+    private ImageProcessor(Context context, ImageSource source, Callback callback, OutputTarget target,
+                           OutputTarget.Callback outputCallback, ProcessingOptions options, int priority) {
+        super(priority);
         this.context = context;
-        this.filename = filename;
+        this.source = source;
         this.callback = new WeakReference<>(callback);
-        this.requiredSizePx = requiredSizePx;
-        this.requiredSizeBytes = requiredSizeBytes;
+        this.target = target;
+        this.outputCallback = new WeakReference<>(outputCallback);
+        this.options = options;
+        this.pool = BitmapPool.getInstance(context);
+        this.cache = ResultCache.getInstance(context);
+    }
+
+    /**
+     * Receives a {@link JobMetrics} record for every finished job, on the worker thread.
+     * Null (the default) turns reporting off.
+     */
+    public static void setMetricsListener(JobMetrics.Listener listener) {
+        metricsListener = listener;
+    }
+
+    /**
+     * Per-stage verbose logging. Off by default, in which case no log strings are built.
+     */
+    public static void setVerboseLogging(boolean enabled) {
+        verbose = enabled;
+    }
+
+    /**
+     * Share of the heap the pixel buffers of all running jobs may take together, 0.25 by
+     * default. Jobs that wouldn't fit decode in RGB_565 or produce a smaller image, see
+     * {@link JobMetrics#getPlanChanges()}.
+     */
+    public static void setDecodeHeapShare(float share) {
+        if(share <= 0 || share > 1)
+            throw new IllegalArgumentException("share must be in (0, 1]");
+        decodeHeapShare = share;
     }
 
     @Override
     public void run() {
-        Bitmap bitmap;
-        int scaleFactor = 1;
-
-        if(requiredSizePx == 0 && requiredSizeBytes == 0) {
-            returnResult(filename);
-            return;
+        metrics = new JobMetrics(source.toString());
+        String result = null;
+        ProcessedImage output = null;
+        try {
+            if(target != null)
+                output = processToTarget();
+            else
+                result = process();
+        } catch (RuntimeException e) {
+            // The callback has to fire or the pick activity waits forever
+            Log.e(TAG, "Processing " + source + " failed", e);
+        } finally {
+            source.close();
+            metrics.setSucceeded(target != null ? output != null : result != null);
+            JobMetrics.Listener listener = metricsListener;
+            if(listener != null)
+                listener.onJobFinished(metrics);
+            if(verbose)
+                Log.v(TAG, metrics.toString());
         }
+        if(target != null)
+            returnOutput(output);
+        else
+            returnResult(result);
+    }
 
-        if(requiredSizePx > 0) {
-            Log.v(TAG, "requiredSizePx = " + requiredSizePx);
-            BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-            bmOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(filename, bmOptions);
+    private String process() {
+        metrics.setBytesRead(source.length());
+        if(options.isEmpty()) {
+            metrics.setPassThrough(true);
+            return copyToFile();
+        }
 
-            int imageW = bmOptions.outWidth;
-            int imageH = bmOptions.outHeight;
-            Log.v(TAG, "image = (" + imageW + ", " + imageH + ")");
+        ImageHeader header = probeHeaderTimed();
+        // Nothing to resize: hand out the original bytes, EXIF orientation tag included
+        boolean fits = header != null && fitsAsIs(header);
+        String path = source.getPath();
+        boolean ownTempFile = isOwnTempFile(path);
+        if(fits && (ownTempFile || options.getPassThroughMode() == ProcessingOptions.PASS_THROUGH_REFERENCE)) {
+            if(verbose)
+                Log.v(TAG, "Passing " + source + " through, orientation = " + header.orientation);
+            metrics.setPassThrough(true);
+            return path != null ? path : copyToFile();
+        }
 
-            while(imageW / scaleFactor / 2 >= requiredSizePx &&
-                    imageH / scaleFactor / 2 >= requiredSizePx) {
-                scaleFactor *= 2;
+        String cacheKey = null;
+        // Without size and modification time a changed source would hit the old result
+        if(!ownTempFile && source.length() > 0 && source.lastModified() > 0) {
+            cacheKey = ResultCache.key(source.identity(), options.toKey());
+            File cached = null;
+            try {
+                cached = cache.checkOut(cacheKey, context.getCacheDir());
+            } catch (IOException e) {
+                Log.w(TAG, "Can't check out cached result for " + source, e);
+            }
+            if(cached != null) {
+                if(verbose)
+                    Log.v(TAG, "Cache hit for " + source);
+                metrics.setCacheHit(true);
+                return cached.getAbsolutePath();
             }
-
-            scaleFactor = Math.min(imageW / requiredSizePx, imageH / requiredSizePx);
-            Log.v(TAG, "scale = " + scaleFactor);
         }
+        if(fits)
+            return storePassThrough(header, cacheKey);
 
-        long originalSize = getBitmapSize();
-        Log.v(TAG, "originalSize = " + originalSize);
+        ImageEncoder encoder = new ImageEncoder(options.getOutputFormat(), encodeBudget(),
+                options.getMinSsim(), pool);
+        EncodeBuffer encoded = decodeAndEncode(header, encoder);
+        if(encoded == null)
+            return null;
+        String extension = ImageEncoder.extension(encoder.getFormat());
 
-        long originalSizeScaled = originalSize / (scaleFactor * scaleFactor);
-        Log.v(TAG, "originalSizeScaled = " + originalSizeScaled);
+        File resultFile;
+        metrics.begin(JobMetrics.STAGE_WRITE);
+        try {
+            if(ownTempFile) {
+                resultFile = withExtension(new File(path), extension);
+                // Renamed over rather than overwritten, the old file may be a link shared with the cache
+                File tmp = new File(resultFile.getPath() + ".tmp");
+                write(encoded, tmp);
+                if(!tmp.renameTo(resultFile)) {
+                    tmp.delete();
+                    throw new IOException("Can't replace " + resultFile);
+                }
+                if(!resultFile.getPath().equals(path))
+                    new File(path).delete();
+            } else {
+                resultFile = File.createTempFile("image", extension, context.getCacheDir());
+                write(encoded, resultFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            metrics.end(JobMetrics.STAGE_WRITE);
+        }
+        putInCache(cacheKey, extension, resultFile);
+        metrics.setBytesWritten(encoded.size());
 
-        if(requiredSizeBytes > 0 && originalSizeScaled > requiredSizeBytes) {
+        if(verbose)
+            Log.v(TAG, "quality = " + encoder.getQuality() + ", result = " + resultFile + " (" + encoded.size() + " bytes)");
+        return resultFile.getAbsolutePath();
+    }
 
-            Log.v(TAG, "requiredSizeBytes = " + requiredSizeBytes);
+    /**
+     * Same decisions as {@link #process()}, but the bytes go to the target and the result
+     * cache is left out. A source that can be passed through is read into memory as is.
+     */
+    private ProcessedImage processToTarget() {
+        metrics.setBytesRead(source.length());
+        ImageHeader header = probeHeaderTimed();
+        boolean fits = options.isEmpty() || (header != null && fitsAsIs(header));
+        int format = header != null ? header.format : ImageHeader.FORMAT_UNKNOWN;
 
-            while(originalSizeScaled / scaleFactor >= requiredSizeBytes) {
-                scaleFactor *= 2;
+        EncodeBuffer encoded;
+        if(fits) {
+            metrics.setPassThrough(true);
+            metrics.begin(JobMetrics.STAGE_COPY);
+            try {
+                encoded = readSource();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                metrics.end(JobMetrics.STAGE_COPY);
             }
         }
+        else {
+            ImageEncoder encoder = new ImageEncoder(options.getOutputFormat(), encodeBudget(),
+                    options.getMinSsim(), pool);
+            encoded = decodeAndEncode(header, encoder);
+            if(encoded == null)
+                return null;
+            format = encoder.getFormat();
+        }
 
-        Log.v(TAG, "scale = " + scaleFactor);
+        ProcessedImage image;
+        metrics.begin(JobMetrics.STAGE_WRITE);
+        try {
+            image = target.write(encoded, format);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            metrics.end(JobMetrics.STAGE_WRITE);
+        }
+        metrics.setBytesWritten(encoded.size());
+
+        // A camera photo in our cache dir has served its purpose
+        String path = source.getPath();
+        if(isOwnTempFile(path))
+            new File(path).delete();
+        return image;
+    }
 
-        if(scaleFactor > 1) {
-            BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-            bmOptions.inJustDecodeBounds = false;
-            bmOptions.inSampleSize = scaleFactor;
-            bitmap = BitmapFactory.decodeFile(filename, bmOptions);
+    /**
+     * Returns the encoded bitmap or null if the source can't be decoded.
+     */
+    private EncodeBuffer decodeAndEncode(ImageHeader header, ImageEncoder encoder) {
+        Bitmap bitmap = null;
+        try {
+            bitmap = decode(header);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        else {
-            bitmap = BitmapFactory.decodeFile(filename);
+        if(bitmap == null) {
+            Log.e(TAG, "Can't decode " + source);
+            return null;
         }
-        File resultFile = null;
 
+        EncodeBuffer encoded;
+        Bitmap scaled = null;
+        metrics.begin(JobMetrics.STAGE_ENCODE);
         try {
-            if(filename.contains(context.getCacheDir().getAbsolutePath())) {
-                resultFile = new File(filename);
-            } else {
-                resultFile = File.createTempFile("image", ".png", context.getCacheDir());
+            encoded = encoder.encode(bitmap);
+            if(encoder.getBitmap() != bitmap) {
+                // Scaled down by the budget search while the decoded bitmap was still held
+                scaled = encoder.getBitmap();
+                metrics.bitmapAllocated(scaled);
             }
-            FileOutputStream compressed = new FileOutputStream(resultFile);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 97, compressed);
-            compressed.flush();
-            compressed.close();
-            bitmap.recycle();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            if(metadata != null && !metadata.isEmpty() && encoder.getFormat() == ImageHeader.FORMAT_JPEG)
+                metadata.spliceInto(encoded, encoder.getBitmap().getWidth(), encoder.getBitmap().getHeight());
+        } finally {
+            metrics.end(JobMetrics.STAGE_ENCODE);
+        }
+        if(scaled != null) {
+            metrics.bitmapReleased(scaled);
+            pool.put(scaled);
+        }
+        metrics.bitmapReleased(bitmap);
+        pool.put(bitmap);
+        metrics.setQuality(encoder.getQuality());
+        metrics.setSsim(encoder.getSsim());
+        metrics.setFormat(encoder.getFormat());
+        return encoded;
+    }
+
+    /**
+     * The byte budget left for the encoder once the carried over metadata is in. Metadata
+     * that would take more than half of the budget is dropped instead.
+     */
+    private int encodeBudget() {
+        int budget = options.getRequiredSizeBytes();
+        if(budget <= 0 || metadata == null || metadata.isEmpty())
+            return budget;
+        if(metadata.length() > budget / 2) {
+            Log.w(TAG, "Dropping " + metadata.length() + " bytes of metadata of " + source + " to fit the budget");
+            metadata = null;
+            return budget;
+        }
+        return budget - metadata.length();
+    }
+
+    /**
+     * Hands out the unchanged source as a new file, hard-linked or copied, and remembers it
+     * in the result cache.
+     */
+    private String storePassThrough(ImageHeader header, String cacheKey) {
+        metrics.setPassThrough(true);
+        String extension = ImageEncoder.extension(header.format);
+        File resultFile;
+        metrics.begin(JobMetrics.STAGE_COPY);
+        try {
+            resultFile = File.createTempFile("image", extension, context.getCacheDir());
+            resultFile.delete();
+            boolean linked = options.getPassThroughMode() == ProcessingOptions.PASS_THROUGH_LINK && source.linkTo(resultFile);
+            if(!linked)
+                metrics.setBytesWritten(source.copyTo(resultFile));
+            if(verbose)
+                Log.v(TAG, (linked ? "Linked " : "Copied ") + source + " unchanged");
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        } finally {
+            metrics.end(JobMetrics.STAGE_COPY);
+        }
+        putInCache(cacheKey, extension, resultFile);
+        return resultFile.getAbsolutePath();
+    }
+
+    /**
+     * The result file stays with the caller; the cache keeps a link or a copy of its own.
+     * A null key means the source can't be cached.
+     */
+    private void putInCache(String cacheKey, String extension, File resultFile) {
+        if(cacheKey == null)
+            return;
+        try {
+            cache.put(cacheKey, extension, resultFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't cache result for " + source, e);
+        }
+    }
+
+    private String copyToFile() {
+        metrics.begin(JobMetrics.STAGE_COPY);
+        try {
+            return source.toFile();
+        } finally {
+            metrics.end(JobMetrics.STAGE_COPY);
+        }
+    }
+
+    /**
+     * A camera photo in our cache dir that may be replaced by the result. Originals kept by
+     * the {@link OriginalStore} are shared and stay as they are.
+     */
+    private boolean isOwnTempFile(String path) {
+        return path != null && path.contains(context.getCacheDir().getAbsolutePath())
+                && !OriginalStore.getInstance(context).contains(path);
+    }
+
+    private static File withExtension(File file, String extension) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return new File(file.getParentFile(), base + extension);
+    }
+
+    private static void write(EncodeBuffer encoded, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            encoded.writeTo(out);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private EncodeBuffer readSource() throws IOException {
+        long length = source.length();
+        EncodeBuffer buffer = new EncodeBuffer(length > 0 && length < Integer.MAX_VALUE ? (int) length : HEADER_BUFFER_SIZE);
+        InputStream in = source.openStream();
+        try {
+            byte[] chunk = new byte[HEADER_BUFFER_SIZE];
+            int read;
+            while((read = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return buffer;
+    }
+
+    private ImageHeader probeHeaderTimed() {
+        metrics.begin(JobMetrics.STAGE_BOUNDS);
+        try {
+            return probeHeader();
+        } finally {
+            metrics.end(JobMetrics.STAGE_BOUNDS);
+        }
+    }
+
+    /**
+     * Reads format, size and EXIF orientation, or returns null if the header can't be read.
+     * The metadata to keep is collected on the way.
+     */
+    private ImageHeader probeHeader() {
+        if(options.getKeptMetadata() != 0)
+            metadata = new JpegMetadata(options.getKeptMetadata(), options.getStrippedExifTags());
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(source.openStream(), HEADER_BUFFER_SIZE);
+            return ImageHeader.probe(in, metadata);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read header of " + source, e);
+            return null;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+
+                }
+            }
+        }
+    }
+
+    /**
+     * True when the source already is in the requested output format, has the target size
+     * and fits the byte budget, judging by the header and the file length alone.
+     */
+    private boolean fitsAsIs(ImageHeader header) {
+        if(!header.isKnown() || options.hasCropRect())
+            return false;
+        // Any of the formats AUTO picks from will do as it is
+        if(options.getOutputFormat() != ProcessingOptions.OUTPUT_AUTO && header.format != options.getOutputFormat())
+            return false;
+        // A quality target asks for a re-encode even at the same size, so does editing the metadata
+        if(options.getMinSsim() > 0 || options.hasStrippedExifTags())
+            return false;
+
+        int[] target = SizeCalculator.targetSize(header.orientedWidth(), header.orientedHeight(),
+                options.getMaxWidth(), options.getMaxHeight(), options.getScaleMode());
+        if(target[0] != header.orientedWidth() || target[1] != header.orientedHeight())
+            return false;
+
+        if(options.getRequiredSizeBytes() <= 0)
+            return true;
+        long length = source.length();
+        return length > 0 && length <= options.getRequiredSizeBytes();
+    }
+
+    /**
+     * Coarse power-of-two subsampled decode followed by one exact scale, crop and
+     * orientation step. Sizes are computed on the upright image. When only part of the
+     * source is needed, or the whole frame wouldn't fit in memory even subsampled, just
+     * that part is decoded through {@link RegionDecoder}.
+     */
+    private Bitmap decode(ImageHeader header) throws IOException {
+        BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+        int imageW;
+        int imageH;
+        int orientation = Orientation.NORMAL;
+        if(header != null && header.isKnown()) {
+            imageW = header.width;
+            imageH = header.height;
+            orientation = header.orientation;
+        }
+        else {
+            bmOptions.inJustDecodeBounds = true;
+            metrics.begin(JobMetrics.STAGE_BOUNDS);
+            try {
+                source.decode(bmOptions);
+            } finally {
+                metrics.end(JobMetrics.STAGE_BOUNDS);
+            }
+            imageW = bmOptions.outWidth;
+            imageH = bmOptions.outHeight;
+        }
+        if(verbose)
+            Log.v(TAG, "image = (" + imageW + ", " + imageH + "), orientation = " + orientation);
+        if(imageW <= 0 || imageH <= 0)
+            return null;
+
+        boolean swap = Orientation.swapsDimensions(orientation);
+        int uprightW = swap ? imageH : imageW;
+        int uprightH = swap ? imageW : imageH;
+
+        // Part of the upright source that ends up in the result
+        int[] region = {0, 0, uprightW, uprightH};
+        if(options.hasCropRect()) {
+            Rect crop = options.getCropRect();
+            if(!crop.intersect(0, 0, uprightW, uprightH))
+                return null;
+            region = new int[]{crop.left, crop.top, crop.right, crop.bottom};
+        }
+        int regionW = region[2] - region[0];
+        int regionH = region[3] - region[1];
+        int[] scaled = SizeCalculator.scaledSize(regionW, regionH, options.getMaxWidth(),
+                options.getMaxHeight(), options.getScaleMode());
+        int[] target = SizeCalculator.targetSize(regionW, regionH, options.getMaxWidth(),
+                options.getMaxHeight(), options.getScaleMode());
+
+        // Center crop keeps only the middle of the region
+        int cropW = Math.min(regionW, Math.round(target[0] * (float) regionW / scaled[0]));
+        int cropH = Math.min(regionH, Math.round(target[1] * (float) regionH / scaled[1]));
+        region[0] += (regionW - cropW) / 2;
+        region[1] += (regionH - cropH) / 2;
+        region[2] = region[0] + cropW;
+        region[3] = region[1] + cropH;
+
+        boolean canTile = header != null && RegionDecoder.isSupported(header.format);
+        boolean mayHaveAlpha = header == null || header.format != ImageHeader.FORMAT_JPEG;
+        DecodePlanner.Plan plan = new DecodePlanner(memoryBudget(), RegionDecoder.STRIP_BYTES)
+                .plan(uprightW, uprightH, cropW, cropH, target[0], target[1], mayHaveAlpha, canTile);
+        if(plan.changes != 0)
+            Log.w(TAG, "Not enough memory for " + source + " as requested, " + plan);
+        else if(verbose)
+            Log.v(TAG, plan.toString());
+        int sample = plan.sampleSize;
+        target = new int[]{plan.targetWidth, plan.targetHeight};
+        Bitmap.Config config = plan.bytesPerPixel == 2 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        metrics.setSampleSize(sample);
+        metrics.setPlanChanges(plan.changes);
+
+        if(plan.tiled) {
+            int[] stored = Orientation.storedRect(orientation, imageW, imageH, region);
+            Bitmap result;
+            metrics.begin(JobMetrics.STAGE_DECODE);
+            try {
+                result = RegionDecoder.decode(source, stored, sample, orientation, target, config, pool, metrics);
+            } finally {
+                metrics.end(JobMetrics.STAGE_DECODE);
+            }
+            if(result != null)
+                return result;
+            Log.w(TAG, "Region decode failed, decoding the whole image");
+        }
+
+        bmOptions.inJustDecodeBounds = false;
+        bmOptions.inSampleSize = sample;
+        bmOptions.inPreferredConfig = config;
+        Bitmap decoded;
+        metrics.begin(JobMetrics.STAGE_DECODE);
+        try {
+            decoded = decodePooled(bmOptions, imageW, imageH);
+        } finally {
+            metrics.end(JobMetrics.STAGE_DECODE);
+        }
+        if(decoded == null)
+            return null;
+        metrics.bitmapAllocated(decoded);
+
+        metrics.begin(JobMetrics.STAGE_SCALE);
+        try {
+            return scaleExact(decoded, orientation, uprightW, uprightH, region, target);
+        } finally {
+            metrics.end(JobMetrics.STAGE_SCALE);
         }
+    }
 
-        final String resultFilename = resultFile != null ? resultFile.getAbsolutePath() : filename;
-        Log.v(TAG, "resultSize = " + resultFile.length());
-        Log.v(TAG, "resultFilename = " + resultFilename);
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Bitmap decodePooled(BitmapFactory.Options bmOptions, int imageW, int imageH) throws IOException {
+        int sample = bmOptions.inSampleSize;
+        boolean reusable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ||
+                (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && sample == 1);
+        if(reusable) {
+            bmOptions.inMutable = true;
+            bmOptions.inBitmap = pool.get((imageW + sample - 1) / sample, (imageH + sample - 1) / sample,
+                    bmOptions.inPreferredConfig);
+        }
 
-       returnResult(resultFilename);
+        try {
+            return source.decode(bmOptions);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Pooled bitmap rejected by decoder", e);
+            pool.put(bmOptions.inBitmap);
+            bmOptions.inBitmap = null;
+            return source.decode(bmOptions);
+        }
     }
 
-    private long getBitmapSize() {
-        return new File(filename).length();
+    /**
+     * Bytes this job may spend on pixel buffers: its part of the configured heap share,
+     * but no more than is free right now. Before Honeycomb bitmap pixels live in the native
+     * heap and count against the memory class rather than the Java heap limit.
+     */
+    private long memoryBudget() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long limit = runtime.maxMemory();
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            limit = am.getMemoryClass() * 1024L * 1024L;
+            used += Debug.getNativeHeapAllocatedSize();
+        }
+        long share = (long) (limit * decodeHeapShare) / WorkerPool.getInstance().getPoolSize();
+        long budget = Math.max(0, Math.min(share, limit - used));
+        if(verbose)
+            Log.v(TAG, "limit = " + limit + ", used = " + used + ", budget = " + budget);
+        return budget;
+    }
+
+    /**
+     * Draws the region of the decoded bitmap upright and scaled to the target in one pass.
+     *
+     * @param region {left, top, right, bottom} in upright full-resolution coordinates
+     */
+    private Bitmap scaleExact(Bitmap decoded, int orientation, int uprightW, int uprightH, int[] region,
+                              int[] target) {
+        int w = decoded.getWidth();
+        int h = decoded.getHeight();
+        boolean whole = region[0] == 0 && region[1] == 0 && region[2] == uprightW && region[3] == uprightH;
+        if(orientation == Orientation.NORMAL && whole && w == target[0] && h == target[1])
+            return decoded;
+
+        if(options.getResampleFilter() != ProcessingOptions.RESAMPLE_BILINEAR && !decoded.hasAlpha()) {
+            Bitmap result = resampleExact(decoded, orientation, uprightW, uprightH, region, target);
+            if(result != null)
+                return result;
+        }
+
+        boolean swap = Orientation.swapsDimensions(orientation);
+        float fx = (swap ? h : w) / (float) uprightW;
+        float fy = (swap ? w : h) / (float) uprightH;
+
+        float[] a = Orientation.affine(orientation, w, h);
+        Matrix matrix = new Matrix();
+        matrix.setValues(new float[]{a[0], a[1], a[2], a[3], a[4], a[5], 0, 0, 1});
+        matrix.postTranslate(-region[0] * fx, -region[1] * fy);
+        matrix.postScale(target[0] / ((region[2] - region[0]) * fx), target[1] / ((region[3] - region[1]) * fy));
+
+        Bitmap.Config config = decoded.getConfig() != null ? decoded.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap result = pool.get(target[0], target[1], config);
+        if(result == null)
+            result = Bitmap.createBitmap(target[0], target[1], config);
+        metrics.bitmapAllocated(result);
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1)
+            result.setHasAlpha(decoded.hasAlpha());
+        new Canvas(result).drawBitmap(decoded, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        metrics.bitmapReleased(decoded);
+        pool.put(decoded);
+        return result;
+    }
+
+    /**
+     * Same as {@link #scaleExact} with {@link Resampler} instead of the canvas: scales the
+     * stored region to the target on int pixels, then turns it upright. Returns null without
+     * touching the decoded bitmap when the pixel arrays don't fit in the memory budget.
+     */
+    private Bitmap resampleExact(Bitmap decoded, int orientation, int uprightW, int uprightH, int[] region,
+                                 int[] target) {
+        int w = decoded.getWidth();
+        int h = decoded.getHeight();
+        boolean swap = Orientation.swapsDimensions(orientation);
+        int storedW = swap ? uprightH : uprightW;
+        int storedH = swap ? uprightW : uprightH;
+        int[] stored = Orientation.storedRect(orientation, storedW, storedH, region);
+        float sx = w / (float) storedW;
+        float sy = h / (float) storedH;
+        int left = (int) (stored[0] * sx);
+        int top = (int) (stored[1] * sy);
+        int regionW = Math.max(1, Math.min(w, (int) Math.ceil(stored[2] * sx)) - left);
+        int regionH = Math.max(1, Math.min(h, (int) Math.ceil(stored[3] * sy)) - top);
+        int scaledW = swap ? target[1] : target[0];
+        int scaledH = swap ? target[0] : target[1];
+
+        long bytes = ((long) regionW * regionH + 2L * scaledW * scaledH) * 4
+                + Resampler.scratchBytes(regionW, regionH, scaledW, scaledH);
+        if(bytes > memoryBudget()) {
+            Log.w(TAG, "Not enough memory to resample " + source + ", scaling bilinearly");
+            return null;
+        }
+
+        int[] pixels = new int[regionW * regionH];
+        decoded.getPixels(pixels, 0, regionW, left, top, regionW, regionH);
+        Bitmap.Config config = decoded.getConfig() != null ? decoded.getConfig() : Bitmap.Config.ARGB_8888;
+        metrics.bitmapReleased(decoded);
+        pool.put(decoded);
+
+        int[] scaled = new int[scaledW * scaledH];
+        WorkerPool workers = WorkerPool.getInstance();
+        new Resampler(options.getResampleFilter(), workers.getHelperExecutor(), workers.getPoolSize())
+                .resample(pixels, regionW, regionH, scaled, scaledW, scaledH);
+        pixels = null;
+        if(orientation != Orientation.NORMAL) {
+            int[] upright = new int[scaled.length];
+            Orientation.transform(orientation, scaled, scaledW, scaledH, upright);
+            scaled = upright;
+        }
+
+        Bitmap result = pool.get(target[0], target[1], config);
+        if(result == null)
+            result = Bitmap.createBitmap(target[0], target[1], config);
+        metrics.bitmapAllocated(result);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1)
+            result.setHasAlpha(false);
+        result.setPixels(scaled, 0, target[0], 0, 0, target[0], target[1]);
+        return result;
+    }
+
+    @Override
+    protected void onRejected() {
+        if(target != null)
+            returnOutput(null);
+        else
+            returnResult(null);
     }
 
     private void returnResult(final String filename) {
@@ -134,6 +766,23 @@ public class ImageProcessor extends Thread {
         });
     }
 
+    private void returnOutput(final ProcessedImage image) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                OutputTarget.Callback c = outputCallback.get();
+                if(c != null) {
+                    c.onOutput(image);
+                }
+                else {
+                    Log.wtf(TAG, "Where is callback?");
+                    if(image != null)
+                        image.recycle();
+                }
+            }
+        });
+    }
+
     public interface Callback {
         void onImageProcessed(String filename);
     }
@@ -0,0 +1,300 @@
+package com.github.arkty.androidcamera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where ImageProcessor reads pixels from: a plain file or a content Uri.
+ *
+ * A Uri is opened once as a {@link ParcelFileDescriptor} and both the bounds pass and
+ * the pixel decode read from that descriptor; nothing is copied to disk unless the
+ * caller asks for a file via {@link #toFile()}.
+ */
+abstract class ImageSource implements Closeable {
+
+    static ImageSource of(String path) {
+        return new FileSource(path);
+    }
+
+    static ImageSource of(Context context, Uri uri) {
+        return new UriSource(context, uri);
+    }
+
+    abstract Bitmap decode(BitmapFactory.Options options) throws IOException;
+
+    /**
+     * A fresh stream over the source bytes for header parsing. Doesn't move the offset of
+     * the descriptor used for decoding.
+     */
+    abstract InputStream openStream() throws IOException;
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    abstract BitmapRegionDecoder newRegionDecoder() throws IOException;
+
+    /**
+     * Copies the source bytes to the file and returns the number of bytes copied.
+     */
+    abstract long copyTo(File target) throws IOException;
+
+    /**
+     * Makes the file a hard link to the source. Returns false if that isn't possible, in
+     * which case nothing was created.
+     */
+    boolean linkTo(File target) {
+        return false;
+    }
+
+    /**
+     * Size in bytes or -1 when unknown.
+     */
+    abstract long length();
+
+    /**
+     * Modification time or 0 when unknown.
+     */
+    abstract long lastModified();
+
+    /**
+     * Location, size and modification time; changes whenever the content may have changed.
+     */
+    abstract String identity();
+
+    /**
+     * Absolute path if the source is a file, null otherwise.
+     */
+    abstract String getPath();
+
+    /**
+     * Absolute path of a file holding the source bytes, copying the source if it isn't a file.
+     */
+    abstract String toFile();
+
+    @Override
+    public void close() {
+    }
+
+    private static class FileSource extends ImageSource {
+
+        private static final String TAG = "FileSource";
+
+        private final String path;
+
+        FileSource(String path) {
+            this.path = path;
+        }
+
+        @Override
+        Bitmap decode(BitmapFactory.Options options) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+
+        @Override
+        InputStream openStream() throws IOException {
+            return new FileInputStream(path);
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+        BitmapRegionDecoder newRegionDecoder() throws IOException {
+            return BitmapRegionDecoder.newInstance(path, false);
+        }
+
+        @Override
+        long copyTo(File target) throws IOException {
+            return CopyEngine.getInstance().copy(new File(path), target, null);
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        boolean linkTo(File target) {
+            if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+                return false;
+            try {
+                Os.link(path, target.getAbsolutePath());
+                return true;
+            } catch (ErrnoException e) {
+                // EXDEV when the source lives on another file system, EPERM on FAT
+                Log.v(TAG, "Can't link " + path + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        long length() {
+            return new File(path).length();
+        }
+
+        @Override
+        long lastModified() {
+            return new File(path).lastModified();
+        }
+
+        @Override
+        String identity() {
+            File file = new File(path);
+            return path + "|" + file.length() + "|" + file.lastModified();
+        }
+
+        @Override
+        String getPath() {
+            return path;
+        }
+
+        @Override
+        String toFile() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+
+    private static class UriSource extends ImageSource {
+
+        private static final String TAG = "UriSource";
+
+        private final Context context;
+        private final Uri uri;
+        private ParcelFileDescriptor descriptor;
+        private boolean opened;
+
+        UriSource(Context context, Uri uri) {
+            this.context = context;
+            this.uri = uri;
+        }
+
+        @Override
+        Bitmap decode(BitmapFactory.Options options) throws IOException {
+            ParcelFileDescriptor pfd = open();
+            if(pfd != null)
+                return BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, options);
+
+            InputStream is = context.getContentResolver().openInputStream(uri);
+            if(is == null)
+                throw new FileNotFoundException(uri.toString());
+            try {
+                return BitmapFactory.decodeStream(is, null, options);
+            } finally {
+                is.close();
+            }
+        }
+
+        @Override
+        InputStream openStream() throws IOException {
+            InputStream is = context.getContentResolver().openInputStream(uri);
+            if(is == null)
+                throw new FileNotFoundException(uri.toString());
+            return is;
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+        BitmapRegionDecoder newRegionDecoder() throws IOException {
+            ParcelFileDescriptor pfd = open();
+            if(pfd != null)
+                return BitmapRegionDecoder.newInstance(pfd.getFileDescriptor(), false);
+
+            InputStream is = openStream();
+            try {
+                return BitmapRegionDecoder.newInstance(is, false);
+            } finally {
+                is.close();
+            }
+        }
+
+        @Override
+        long copyTo(File target) throws IOException {
+            return CopyEngine.getInstance().copy(context, uri, target, null);
+        }
+
+        @Override
+        long length() {
+            ParcelFileDescriptor pfd = open();
+            return pfd != null ? pfd.getStatSize() : -1;
+        }
+
+        @Override
+        String identity() {
+            return uri + "|" + length() + "|" + lastModified();
+        }
+
+        @Override
+        String getPath() {
+            return null;
+        }
+
+        @Override
+        String toFile() {
+            return new UriResolver(context).writeToTempfile(uri);
+        }
+
+        @Override
+        public void close() {
+            if(descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+
+                }
+                descriptor = null;
+            }
+        }
+
+        @Override
+        long lastModified() {
+            ParcelFileDescriptor pfd = open();
+            if(pfd != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                try {
+                    return Os.fstat(pfd.getFileDescriptor()).st_mtime;
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "fstat failed for " + uri, e);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns a seekable descriptor or null when the provider only offers a stream.
+         * BitmapFactory restores the descriptor offset after each decode, so one descriptor
+         * serves every pass.
+         */
+        private ParcelFileDescriptor open() {
+            if(!opened) {
+                opened = true;
+                try {
+                    descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+                    if(descriptor != null && descriptor.getStatSize() < 0) {
+                        Log.v(TAG, "Descriptor is not seekable, falling back to streams");
+                        close();
+                    }
+                } catch (FileNotFoundException | SecurityException e) {
+                    Log.w(TAG, "Can't open descriptor for " + uri, e);
+                }
+            }
+            return descriptor;
+        }
+
+        @Override
+        public String toString() {
+            return uri.toString();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.github.arkty.androidcamera;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Trace;
+
+/**
+ * What one ImageProcessor job spent and produced: wall and thread CPU time per stage,
+ * bytes in and out, the chosen sample size and quality and the peak amount of bitmap
+ * memory held at once. Each stage is also emitted as an {@link Trace} section on
+ * JellyBean MR2 and newer.
+ *
+ * @see ImageProcessor#setMetricsListener(Listener)
+ */
+public final class JobMetrics {
+
+    /**
+     * Header probe or BitmapFactory bounds pass.
+     */
+    public static final int STAGE_BOUNDS = 0;
+    /**
+     * Pixel decode, including region decoding.
+     */
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_SCALE = 2;
+    public static final int STAGE_ENCODE = 3;
+    public static final int STAGE_WRITE = 4;
+    /**
+     * Copying a content Uri to a local file.
+     */
+    public static final int STAGE_COPY = 5;
+    public static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {"bounds", "decode", "scale", "encode", "write", "copy"};
+    private static final String[] TRACE_NAMES = {"ImageProcessor.bounds", "ImageProcessor.decode",
+            "ImageProcessor.scale", "ImageProcessor.encode", "ImageProcessor.write", "ImageProcessor.copy"};
+
+    private final String source;
+    private final long[] wallNanos = new long[STAGE_COUNT];
+    private final long[] cpuNanos = new long[STAGE_COUNT];
+    private long stageWallStart;
+    private long stageCpuStart;
+
+    private long bytesRead = -1;
+    private long bytesWritten;
+    private int sampleSize = 1;
+    private int quality;
+    private int format;
+    private double ssim;
+    private long bitmapBytes;
+    private long peakBitmapBytes;
+    private int planChanges;
+    private boolean cacheHit;
+    private boolean passThrough;
+    private boolean succeeded;
+
+    JobMetrics(String source) {
+        this.source = source;
+    }
+
+    public static String stageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getWallNanos(int stage) {
+        return wallNanos[stage];
+    }
+
+    /**
+     * Thread CPU time of the stage, 0 where the platform can't measure it.
+     */
+    public long getCpuNanos(int stage) {
+        return cpuNanos[stage];
+    }
+
+    public long getTotalWallNanos() {
+        long total = 0;
+        for(long nanos : wallNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    public long getTotalCpuNanos() {
+        long total = 0;
+        for(long nanos : cpuNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    /**
+     * Source size in bytes or -1 when unknown.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Encoder quality of the result, 0 when nothing was encoded.
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * Output format as one of the {@link com.github.arkty.androidcamera.core.ImageHeader}
+     * FORMAT_ constants, FORMAT_UNKNOWN when nothing was encoded.
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * SSIM of the result on the quality search proxy, 0 when no quality target was set.
+     */
+    public double getSsim() {
+        return ssim;
+    }
+
+    public long getPeakBitmapBytes() {
+        return peakBitmapBytes;
+    }
+
+    /**
+     * {@link com.github.arkty.androidcamera.core.DecodePlanner} CHANGED_ flags: how the result
+     * differs from the request because of the memory budget, 0 when it doesn't.
+     */
+    public int getPlanChanges() {
+        return planChanges;
+    }
+
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * True when the source was returned without decoding.
+     */
+    public boolean isPassThrough() {
+        return passThrough;
+    }
+
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    void begin(int stage) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            beginSection(TRACE_NAMES[stage]);
+        stageWallStart = System.nanoTime();
+        stageCpuStart = Debug.threadCpuTimeNanos();
+    }
+
+    void end(int stage) {
+        long cpu = Debug.threadCpuTimeNanos();
+        wallNanos[stage] += System.nanoTime() - stageWallStart;
+        if(cpu >= 0 && stageCpuStart >= 0)
+            cpuNanos[stage] += cpu - stageCpuStart;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            Trace.endSection();
+    }
+
+    void bitmapAllocated(Bitmap bitmap) {
+        if(bitmap == null)
+            return;
+        bitmapBytes += BitmapPool.byteCount(bitmap);
+        peakBitmapBytes = Math.max(peakBitmapBytes, bitmapBytes);
+    }
+
+    void bitmapReleased(Bitmap bitmap) {
+        if(bitmap == null)
+            return;
+        bitmapBytes = Math.max(0, bitmapBytes - BitmapPool.byteCount(bitmap));
+    }
+
+    void setBytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    void setBytesWritten(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+    }
+
+    void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    void setQuality(int quality) {
+        this.quality = quality;
+    }
+
+    void setFormat(int format) {
+        this.format = format;
+    }
+
+    void setPlanChanges(int planChanges) {
+        this.planChanges = planChanges;
+    }
+
+    void setSsim(double ssim) {
+        this.ssim = ssim;
+    }
+
+    void setCacheHit(boolean cacheHit) {
+        this.cacheHit = cacheHit;
+    }
+
+    void setPassThrough(boolean passThrough) {
+        this.passThrough = passThrough;
+    }
+
+    void setSucceeded(boolean succeeded) {
+        this.succeeded = succeeded;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("JobMetrics{").append(source);
+        for(int i = 0; i < STAGE_COUNT; i++) {
+            if(wallNanos[i] > 0)
+                sb.append(", ").append(STAGE_NAMES[i]).append(" = ").append(wallNanos[i] / 1000).append(" us");
+        }
+        return sb.append(", read = ").append(bytesRead)
+                .append(", written = ").append(bytesWritten)
+                .append(", sample = ").append(sampleSize)
+                .append(", format = ").append(format)
+                .append(", quality = ").append(quality)
+                .append(ssim > 0 ? ", ssim = " + ssim : "")
+                .append(", peakBitmapBytes = ").append(peakBitmapBytes)
+                .append(planChanges != 0 ? ", planChanges = " + planChanges : "")
+                .append(cacheHit ? ", cache hit" : "")
+                .append(passThrough ? ", pass-through" : "")
+                .append(succeeded ? "" : ", failed")
+                .append('}').toString();
+    }
+
+    /**
+     * Called on the worker thread right after a job finishes; keep it short.
+     */
+    public interface Listener {
+        void onJobFinished(JobMetrics metrics);
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.arkty.androidcamera;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+/**
+ * Process-wide holder of processing jobs started by the pick activities. A job outlives
+ * the activity instance that started it, so an activity recreated after a configuration
+ * change looks its job up by id and attaches to it instead of starting over. The same goes
+ * for {@link ImagePickHelper}, which gets previews and the file of a two-phase pick from a
+ * job it started. All methods are called on the main thread, except {@link #postPreview}.
+ */
+final class JobRegistry {
+
+    private static JobRegistry instance;
+
+    static JobRegistry getInstance() {
+        if(instance == null)
+            instance = new JobRegistry();
+        return instance;
+    }
+
+    private final SparseArray<Job> jobs = new SparseArray<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int nextId = 1;
+
+    private JobRegistry() {
+    }
+
+    Job newJob() {
+        Job job = new Job(nextId++);
+        jobs.put(job.id, job);
+        return job;
+    }
+
+    /**
+     * Null after process death or once the result was delivered.
+     */
+    Job get(int id) {
+        return jobs.get(id);
+    }
+
+    void remove(int id) {
+        Job job = jobs.get(id);
+        jobs.remove(id);
+        // Nobody is going to take the buffer or pipe of an undelivered output
+        if(job != null && job.output != null) {
+            job.output.recycle();
+            job.output = null;
+        }
+    }
+
+    /**
+     * May be called from any thread. Dropped if the job is gone or already finished.
+     */
+    void postPreview(final int id, final Bitmap preview) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Job job = jobs.get(id);
+                if(job != null)
+                    job.onPreview(preview);
+            }
+        });
+    }
+
+    /**
+     * Listener that also takes the preview of a two-phase pick.
+     */
+    interface PreviewCallback extends ImageProcessor.Callback {
+        void onPreview(Bitmap preview);
+    }
+
+    /**
+     * Keeps the result of a finished job until an activity attaches to take it. Jobs with
+     * an {@link OutputTarget} deliver to listeners that implement {@link OutputTarget.Callback}.
+     */
+    final class Job implements ImageProcessor.Callback, OutputTarget.Callback {
+
+        final int id;
+        private ImageProcessor.Callback listener;
+        private boolean finished;
+        private String result;
+        private ProcessedImage output;
+        private Bitmap preview;
+
+        private Job(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Delivers the result right away if the job has already finished.
+         */
+        void attach(ImageProcessor.Callback listener) {
+            this.listener = listener;
+            if(finished)
+                deliver();
+            else if(preview != null)
+                deliverPreview();
+        }
+
+        void detach() {
+            listener = null;
+        }
+
+        /**
+         * Kept until a {@link PreviewCallback} attaches, a later preview replaces it.
+         */
+        void onPreview(Bitmap preview) {
+            if(finished)
+                return;
+            this.preview = preview;
+            if(listener != null)
+                deliverPreview();
+        }
+
+        @Override
+        public void onImageProcessed(String filename) {
+            finished = true;
+            result = filename;
+            if(listener != null)
+                deliver();
+        }
+
+        @Override
+        public void onOutput(ProcessedImage image) {
+            finished = true;
+            output = image;
+            if(listener != null)
+                deliver();
+        }
+
+        private void deliverPreview() {
+            if(listener instanceof PreviewCallback) {
+                Bitmap p = preview;
+                preview = null;
+                ((PreviewCallback) listener).onPreview(p);
+            }
+        }
+
+        private void deliver() {
+            ImageProcessor.Callback l = listener;
+            ProcessedImage image = output;
+            listener = null;
+            output = null;
+            preview = null;
+            remove(id);
+            if(image != null && l instanceof OutputTarget.Callback)
+                ((OutputTarget.Callback) l).onOutput(image);
+            else
+                l.onImageProcessed(result);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.arkty.androidcamera;
+
+import com.github.arkty.androidcamera.core.LatencyHistogram;
+
+/**
+ * Built-in {@link JobMetrics.Listener} that folds jobs into per-stage histograms, so
+ * percentiles can be read or logged at any time:
+ *
+ * <pre>
+ * MetricsAggregator metrics = new MetricsAggregator();
+ * ImageProcessor.setMetricsListener(metrics);
+ * ...
+ * long p95 = metrics.getWallPercentile(JobMetrics.STAGE_DECODE, 95);
+ * </pre>
+ */
+public class MetricsAggregator implements JobMetrics.Listener {
+
+    private final LatencyHistogram[] wall = new LatencyHistogram[JobMetrics.STAGE_COUNT];
+    private final LatencyHistogram[] cpu = new LatencyHistogram[JobMetrics.STAGE_COUNT];
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram peakBitmapBytes = new LatencyHistogram();
+    private int jobs;
+    private int failed;
+    private int cacheHits;
+    private int passThroughs;
+
+    public MetricsAggregator() {
+        for(int i = 0; i < JobMetrics.STAGE_COUNT; i++) {
+            wall[i] = new LatencyHistogram();
+            cpu[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public synchronized void onJobFinished(JobMetrics metrics) {
+        jobs++;
+        if(!metrics.isSucceeded())
+            failed++;
+        if(metrics.isCacheHit())
+            cacheHits++;
+        if(metrics.isPassThrough())
+            passThroughs++;
+
+        for(int i = 0; i < JobMetrics.STAGE_COUNT; i++) {
+            // Stages a job skipped would only drag the percentiles towards zero
+            if(metrics.getWallNanos(i) > 0) {
+                wall[i].record(metrics.getWallNanos(i));
+                cpu[i].record(metrics.getCpuNanos(i));
+            }
+        }
+        total.record(metrics.getTotalWallNanos());
+        if(metrics.getPeakBitmapBytes() > 0)
+            peakBitmapBytes.record(metrics.getPeakBitmapBytes());
+    }
+
+    /**
+     * @param percentile 0..100
+     */
+    public synchronized long getWallPercentile(int stage, double percentile) {
+        return wall[stage].getPercentile(percentile);
+    }
+
+    public synchronized long getCpuPercentile(int stage, double percentile) {
+        return cpu[stage].getPercentile(percentile);
+    }
+
+    public synchronized long getTotalPercentile(double percentile) {
+        return total.getPercentile(percentile);
+    }
+
+    public synchronized long getPeakBitmapBytesPercentile(double percentile) {
+        return peakBitmapBytes.getPercentile(percentile);
+    }
+
+    public synchronized int getJobCount() {
+        return jobs;
+    }
+
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    public synchronized int getCacheHitCount() {
+        return cacheHits;
+    }
+
+    public synchronized int getPassThroughCount() {
+        return passThroughs;
+    }
+
+    public synchronized void reset() {
+        for(int i = 0; i < JobMetrics.STAGE_COUNT; i++) {
+            wall[i].reset();
+            cpu[i].reset();
+        }
+        total.reset();
+        peakBitmapBytes.reset();
+        jobs = 0;
+        failed = 0;
+        cacheHits = 0;
+        passThroughs = 0;
+    }
+
+    /**
+     * One line per stage with p50 / p95 / p99 wall time in milliseconds.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("jobs = ").append(jobs).append(", failed = ").append(failed)
+                .append(", cache hits = ").append(cacheHits).append(", pass-through = ").append(passThroughs);
+        for(int i = 0; i < JobMetrics.STAGE_COUNT; i++) {
+            if(wall[i].getCount() > 0)
+                appendLine(sb, JobMetrics.stageName(i), wall[i]);
+        }
+        appendLine(sb, "total", total);
+        return sb.toString();
+    }
+
+    private static void appendLine(StringBuilder sb, String name, LatencyHistogram histogram) {
+        sb.append('\n').append(name)
+                .append(": p50 = ").append(millis(histogram.getPercentile(50)))
+                .append(", p95 = ").append(millis(histogram.getPercentile(95)))
+                .append(", p99 = ").append(millis(histogram.getPercentile(99)))
+                .append(" ms");
+    }
+
+    private static String millis(long nanos) {
+        return String.valueOf(nanos / 100000 / 10f);
+    }
+}
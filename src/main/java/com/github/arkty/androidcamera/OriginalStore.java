@@ -0,0 +1,206 @@
+package com.github.arkty.androidcamera;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.github.arkty.androidcamera.core.JournaledLru;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Content-addressed store of picked originals that have to be copied to a local file.
+ *
+ * Files live in cacheDir/originals named by the SHA-1 of their content, which is computed
+ * while the copy streams, so the same image picked twice ends up as one file with one
+ * path and hits the {@link ResultCache} on the second run. A picked Uri whose size and
+ * modification time are known is remembered too, so picking it again skips the copy.
+ *
+ * Store files are never handed out: {@link #checkOut} links or copies them into files of
+ * the caller's own. An entry is retained while that happens and isn't evicted then;
+ * the others go least-recently-used once the total size exceeds the cap, see
+ * {@link JournaledLru}.
+ */
+public final class OriginalStore extends JournaledLru {
+
+    private static final String TAG = "OriginalStore";
+
+    private static final String DIR_NAME = "originals";
+    private static final String EXTENSION = ".jpg";
+
+    private static final String SRC = "SRC";
+
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static OriginalStore instance;
+
+    public static synchronized OriginalStore getInstance(Context context) {
+        if(instance == null)
+            instance = new OriginalStore(new File(context.getCacheDir(), DIR_NAME), DEFAULT_MAX_BYTES);
+        return instance;
+    }
+
+    private final String directoryPath;
+    // Key of a source identity -> content hash
+    private final HashMap<String, String> sources = new HashMap<>();
+
+    private OriginalStore(File directory, long maxBytes) {
+        super(directory, maxBytes);
+        this.directoryPath = directory.getAbsolutePath() + File.separator;
+    }
+
+    /**
+     * True if the file belongs to the store. Such files must not be modified or deleted.
+     */
+    public boolean contains(String path) {
+        return path != null && path.startsWith(directoryPath);
+    }
+
+    /**
+     * Returns a new file in dir with the content of the Uri, which belongs to the caller.
+     * The Uri is copied only when the store doesn't have its content yet; otherwise the
+     * stored file is linked where possible.
+     */
+    public File checkOut(Context context, Uri uri, File dir, CopyEngine.ProgressListener listener) throws IOException {
+        String hash = put(context, uri, listener);
+        try {
+            File out = File.createTempFile("image", EXTENSION, dir);
+            out.delete();
+            try {
+                String path = new File(getDirectory(), hash + EXTENSION).getAbsolutePath();
+                if(!ImageSource.of(path).linkTo(out))
+                    CopyEngine.getInstance().copy(new File(path), out, null);
+            } catch (IOException e) {
+                out.delete();
+                throw e;
+            }
+            return out;
+        } finally {
+            release(hash);
+        }
+    }
+
+    /**
+     * Makes sure the store has the content of the Uri, copying it only when needed, and
+     * returns its hash. The caller holds a reference on the entry.
+     */
+    private String put(Context context, Uri uri, CopyEngine.ProgressListener listener) throws IOException {
+        String sourceKey = sourceKey(context, uri);
+        if(sourceKey != null) {
+            synchronized (this) {
+                open();
+                String hash = sources.get(sourceKey);
+                if(hash != null && acquire(hash)) {
+                    if(ImageProcessor.verbose)
+                        Log.v(TAG, "Already have " + uri);
+                    return hash;
+                }
+            }
+        }
+
+        File tmp;
+        synchronized (this) {
+            open();
+            tmp = File.createTempFile("copy", ".tmp", getDirectory());
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+            CopyEngine.getInstance().copy(context, uri, tmp, digest, listener);
+        } catch (NoSuchAlgorithmException e) {
+            tmp.delete();
+            throw new IllegalStateException(e);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        String hash = hex(digest.digest());
+        commit(hash, tmp, sourceKey);
+        return hash;
+    }
+
+    /**
+     * Drops a reference taken by {@link #put}. The file stays until it is evicted.
+     */
+    private synchronized void release(String hash) {
+        Entry entry = getEntry(hash);
+        if(entry != null && entry.release())
+            trim(null);
+    }
+
+    private synchronized void commit(String hash, File tmp, String sourceKey) throws IOException {
+        if(acquire(hash)) {
+            if(ImageProcessor.verbose)
+                Log.v(TAG, "Same content as " + hash + ", dropping the copy");
+            tmp.delete();
+        }
+        else {
+            commitFile(hash, hash + EXTENSION, tmp).retain();
+        }
+        if(sourceKey != null && !hash.equals(sources.put(sourceKey, hash)))
+            append(SRC, sourceKey + " " + hash);
+    }
+
+    /**
+     * Takes a reference on the entry. Returns false if there is no such entry.
+     */
+    private boolean acquire(String hash) {
+        if(lookup(hash) == null)
+            return false;
+        getEntry(hash).retain();
+        return true;
+    }
+
+    /**
+     * Key of the Uri's location, size and modification time, or null when the provider
+     * doesn't report both and the content can't be told apart from a changed one.
+     */
+    private static String sourceKey(Context context, Uri uri) {
+        ImageSource source = ImageSource.of(context, uri);
+        try {
+            return source.length() > 0 && source.lastModified() > 0
+                    ? ResultCache.key(source.identity(), "") : null;
+        } finally {
+            source.close();
+        }
+    }
+
+    @Override
+    protected boolean replayRecord(String[] record) {
+        if(!SRC.equals(record[0]) || record.length != 3)
+            return false;
+        sources.put(record[1], record[2]);
+        return true;
+    }
+
+    /**
+     * The sources that still point to a live entry.
+     */
+    @Override
+    protected void writeRecords(Writer writer) throws IOException {
+        for(Iterator<Map.Entry<String, String>> it = sources.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> e = it.next();
+            if(containsKey(e.getValue()))
+                writer.write(SRC + " " + e.getKey() + " " + e.getValue() + "\n");
+            else
+                it.remove();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        sources.clear();
+    }
+
+    @Override
+    protected void onJournalError(String message, Exception e) {
+        Log.e(TAG, message, e);
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.arkty.androidcamera;
+
+import android.util.SparseArray;
+
+/**
+ * Hands objects that can't or shouldn't go through an Intent between ImagePickHelper and
+ * the pick activities: the {@link OutputTarget} on the way in and the
+ * {@link ProcessedImage} on the way out. Only the token travels in the Intent. Main
+ * thread only.
+ */
+final class OutputChannel {
+
+    private static final SparseArray<Object> objects = new SparseArray<>();
+    private static int nextToken = 1;
+
+    private OutputChannel() {
+    }
+
+    static int put(Object object) {
+        int token = nextToken++;
+        objects.put(token, object);
+        return token;
+    }
+
+    /**
+     * Null if the token is unknown, e.g. after process death.
+     */
+    static Object get(int token) {
+        return objects.get(token);
+    }
+
+    static Object take(int token) {
+        Object object = objects.get(token);
+        objects.remove(token);
+        return object;
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.arkty.androidcamera;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.github.arkty.androidcamera.core.EncodeBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Where ImageProcessor puts the encoded result when no file is wanted: a pooled
+ * {@link ByteBuffer}, a pipe or a caller supplied stream. Results for a target skip the
+ * result cache, since caching would bring the file write back.
+ */
+public abstract class OutputTarget {
+
+    private static final String TAG = "OutputTarget";
+
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final LinkedList<ByteBuffer> buffers = new LinkedList<>();
+
+    /**
+     * The result arrives in {@link ProcessedImage#getBuffer()}; recycle the image when done.
+     */
+    public static OutputTarget buffer() {
+        return new BufferTarget();
+    }
+
+    /**
+     * The result arrives as the read side of a pipe in {@link ProcessedImage#getPipe()}.
+     * The bytes are written from a pool thread, so the reader may block on it.
+     */
+    public static OutputTarget pipe() {
+        return new PipeTarget();
+    }
+
+    /**
+     * The result is written into the stream on the worker thread. The stream is flushed
+     * but not closed.
+     */
+    public static OutputTarget stream(OutputStream out) {
+        return new StreamTarget(out);
+    }
+
+    /**
+     * Called on the worker thread. The buffer may be reused once this returns.
+     */
+    abstract ProcessedImage write(EncodeBuffer encoded, int format) throws IOException;
+
+    static synchronized ByteBuffer obtainBuffer(int size) {
+        ByteBuffer best = null;
+        for(ByteBuffer buffer : buffers) {
+            if(buffer.capacity() >= size && (best == null || buffer.capacity() < best.capacity()))
+                best = buffer;
+        }
+        if(best == null)
+            return ByteBuffer.allocate(size);
+        buffers.remove(best);
+        best.clear();
+        return best;
+    }
+
+    static synchronized void releaseBuffer(ByteBuffer buffer) {
+        if(buffers.size() >= MAX_POOLED_BUFFERS)
+            buffers.removeFirst();
+        buffers.addLast(buffer);
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread with the result or null if processing failed.
+         */
+        void onOutput(ProcessedImage image);
+    }
+
+    private static class BufferTarget extends OutputTarget {
+
+        @Override
+        ProcessedImage write(EncodeBuffer encoded, int format) {
+            ByteBuffer buffer = obtainBuffer(encoded.size());
+            buffer.put(encoded.array(), 0, encoded.size());
+            buffer.flip();
+            return new ProcessedImage(format, encoded.size(), buffer, null);
+        }
+    }
+
+    private static class PipeTarget extends OutputTarget {
+
+        @Override
+        ProcessedImage write(EncodeBuffer encoded, int format) throws IOException {
+            ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+            OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+            byte[] data;
+            try {
+                // The encode buffer goes back to the worker, the writer gets its own copy
+                data = encoded.toByteArray();
+            } catch (RuntimeException | OutOfMemoryError e) {
+                closeQuietly(out);
+                pipe[0].close();
+                throw e;
+            }
+            WorkerPool.getInstance().getHelperExecutor().execute(new PipeWriter(out, data));
+            return new ProcessedImage(format, data.length, null, pipe[0]);
+        }
+    }
+
+    /**
+     * Blocks until the reader has taken everything, so it runs on a helper thread rather than
+     * on the worker. With all helpers busy it waits in the worker queue instead.
+     */
+    private static class PipeWriter extends WorkerPool.Task {
+
+        private final OutputStream out;
+        private final byte[] data;
+        private boolean queued;
+
+        PipeWriter(OutputStream out, byte[] data) {
+            super(WorkerPool.PRIORITY_USER);
+            this.out = out;
+            this.data = data;
+        }
+
+        @Override
+        public void run() {
+            try {
+                out.write(data);
+            } catch (IOException e) {
+                Log.w(TAG, "Pipe reader went away", e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        @Override
+        protected void onRejected() {
+            if(!queued) {
+                queued = true;
+                WorkerPool.getInstance().execute(this);
+                return;
+            }
+            // The reader sees the end of the stream instead of waiting forever
+            Log.w(TAG, "No thread to write the pipe");
+            closeQuietly(out);
+        }
+    }
+
+    private static class StreamTarget extends OutputTarget {
+
+        private final OutputStream out;
+
+        StreamTarget(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        ProcessedImage write(EncodeBuffer encoded, int format) throws IOException {
+            encoded.writeTo(out);
+            out.flush();
+            return new ProcessedImage(format, encoded.size(), null, null);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.arkty.androidcamera;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.github.arkty.androidcamera.core.ExifThumbnail;
+import com.github.arkty.androidcamera.core.ImageHeader;
+import com.github.arkty.androidcamera.core.Orientation;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Produces a small upright preview of a picked image as fast as possible: the EXIF
+ * thumbnail if the JPEG has one, else the MediaStore thumbnail for media Uris, else a
+ * heavily subsampled RGB_565 decode. Runs ahead of the processing jobs in the pool.
+ */
+class PreviewLoader extends WorkerPool.Task {
+
+    private static final String TAG = "PreviewLoader";
+
+    static final int PREVIEW_SIZE_PX = 320;
+    private static final int HEADER_BUFFER_SIZE = 64 * 1024;
+
+    private final Context context;
+    private final ImageSource source;
+    private final Uri uri;
+    private final int token;
+
+    PreviewLoader(Context context, String path, int token) {
+        super(WorkerPool.PRIORITY_PREVIEW);
+        this.context = context;
+        this.source = ImageSource.of(path);
+        this.uri = null;
+        this.token = token;
+    }
+
+    PreviewLoader(Context context, Uri uri, int token) {
+        super(WorkerPool.PRIORITY_PREVIEW);
+        this.context = context;
+        this.source = ImageSource.of(context, uri);
+        this.uri = uri;
+        this.token = token;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        Bitmap preview = null;
+        try {
+            preview = load();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "No preview for " + source, e);
+        } finally {
+            source.close();
+        }
+        if(preview != null) {
+            if(ImageProcessor.verbose)
+                Log.v(TAG, "Preview " + preview.getWidth() + "x" + preview.getHeight() + " in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+            JobRegistry.getInstance().postPreview(token, preview);
+        }
+    }
+
+    @Override
+    protected void onRejected() {
+        // The full result still arrives, the preview is just skipped
+    }
+
+    private Bitmap load() throws IOException {
+        ExifThumbnail exif;
+        InputStream in = new BufferedInputStream(source.openStream(), HEADER_BUFFER_SIZE);
+        try {
+            exif = ExifThumbnail.read(in);
+        } finally {
+            in.close();
+        }
+
+        Bitmap bitmap = null;
+        if(exif.data != null)
+            bitmap = BitmapFactory.decodeByteArray(exif.data, 0, exif.data.length);
+        if(bitmap == null)
+            bitmap = mediaStoreThumbnail();
+        if(bitmap == null)
+            bitmap = decodeSubsampled();
+        return bitmap != null ? upright(bitmap, exif.orientation) : null;
+    }
+
+    private Bitmap mediaStoreThumbnail() {
+        if(uri == null || !MediaStore.AUTHORITY.equals(uri.getAuthority()))
+            return null;
+        try {
+            long id = ContentUris.parseId(uri);
+            return id >= 0 ? MediaStore.Images.Thumbnails.getThumbnail(context.getContentResolver(), id,
+                    MediaStore.Images.Thumbnails.MINI_KIND, null) : null;
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private Bitmap decodeSubsampled() throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if(options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int sample = 1;
+        while(Math.min(options.outWidth, options.outHeight) / (sample * 2) >= PREVIEW_SIZE_PX) {
+            sample *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return source.decode(options);
+    }
+
+    private static Bitmap upright(Bitmap bitmap, int orientation) {
+        if(orientation == Orientation.NORMAL)
+            return bitmap;
+        float[] a = Orientation.affine(orientation, bitmap.getWidth(), bitmap.getHeight());
+        Matrix matrix = new Matrix();
+        matrix.setValues(new float[]{a[0], a[1], a[2], a[3], a[4], a[5], 0, 0, 1});
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if(rotated != bitmap)
+            bitmap.recycle();
+        return rotated;
+    }
+}
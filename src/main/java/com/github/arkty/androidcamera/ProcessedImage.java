@@ -0,0 +1,71 @@
+package com.github.arkty.androidcamera;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoded result handed to an {@link OutputTarget.Callback} instead of a file path. Which
+ * of {@link #getBuffer()} and {@link #getPipe()} is set depends on the target; for a
+ * stream target the bytes have already been written when the callback runs.
+ */
+public final class ProcessedImage {
+
+    private final int format;
+    private final long length;
+    private ByteBuffer buffer;
+    private ParcelFileDescriptor pipe;
+
+    ProcessedImage(int format, long length, ByteBuffer buffer, ParcelFileDescriptor pipe) {
+        this.format = format;
+        this.length = length;
+        this.buffer = buffer;
+        this.pipe = pipe;
+    }
+
+    /**
+     * One of the {@link com.github.arkty.androidcamera.core.ImageHeader} FORMAT_ constants.
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * The encoded bytes between position 0 and the limit, or null if the target wasn't a
+     * buffer. Valid until {@link #recycle()}.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Read side of a pipe the bytes are being written into, or null if the target wasn't a
+     * pipe. The reader owns it; {@link #recycle()} closes it.
+     */
+    public ParcelFileDescriptor getPipe() {
+        return pipe;
+    }
+
+    /**
+     * Returns the buffer to the pool or closes the pipe. The image can't be used afterwards.
+     */
+    public void recycle() {
+        if(buffer != null) {
+            OutputTarget.releaseBuffer(buffer);
+            buffer = null;
+        }
+        if(pipe != null) {
+            try {
+                pipe.close();
+            } catch (IOException e) {
+
+            }
+            pipe = null;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.github.arkty.androidcamera;
+
+import android.graphics.Rect;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.github.arkty.androidcamera.core.ImageHeader;
+import com.github.arkty.androidcamera.core.JpegMetadata;
+import com.github.arkty.androidcamera.core.Resampler;
+import com.github.arkty.androidcamera.core.SizeCalculator;
+
+import java.util.Arrays;
+
+/**
+ * What ImageProcessor should do with a picked image. Travels between the helper and the
+ * pick activities as an Intent extra.
+ */
+public class ProcessingOptions implements Parcelable {
+
+    /**
+     * Scale down to fit inside maxWidth x maxHeight, keeping the aspect ratio.
+     */
+    public static final int SCALE_FIT = SizeCalculator.SCALE_FIT;
+    /**
+     * Scale down until the image covers maxWidth x maxHeight, keeping the aspect ratio.
+     */
+    public static final int SCALE_FILL = SizeCalculator.SCALE_FILL;
+    /**
+     * Same as {@link #SCALE_FILL}, then cut the centered maxWidth x maxHeight part.
+     */
+    public static final int SCALE_CENTER_CROP = SizeCalculator.SCALE_CENTER_CROP;
+
+    public static final int OUTPUT_JPEG = ImageHeader.FORMAT_JPEG;
+    public static final int OUTPUT_PNG = ImageHeader.FORMAT_PNG;
+    /**
+     * Falls back to JPEG before Ice Cream Sandwich.
+     */
+    public static final int OUTPUT_WEBP = ImageHeader.FORMAT_WEBP;
+    /**
+     * Encode in every format the device can write for the image (WebP and JPEG, or WebP
+     * and PNG when it has transparency) and keep the smallest that meets the constraints.
+     * A source that already fits in any of these formats is kept as it is.
+     */
+    public static final int OUTPUT_AUTO = 0;
+
+    /**
+     * A source that already fits is returned by its own path. Content Uris, which have no
+     * path, are copied.
+     */
+    public static final int PASS_THROUGH_REFERENCE = 0;
+    /**
+     * A source that already fits is hard-linked into a new result file, or copied where
+     * links aren't possible (before Lollipop, across file systems).
+     */
+    public static final int PASS_THROUGH_LINK = 1;
+    /**
+     * A source that already fits is copied into a new result file.
+     */
+    public static final int PASS_THROUGH_COPY = 2;
+
+    /**
+     * Bilinear scaling by the platform after the decoder's power-of-two subsampling.
+     */
+    public static final int RESAMPLE_BILINEAR = -1;
+    /**
+     * Area-averaging scaling in Java after the subsampling; no aliasing on large reductions.
+     */
+    public static final int RESAMPLE_BOX = Resampler.FILTER_BOX;
+    /**
+     * Lanczos scaling in Java after the subsampling; sharpest, slowest.
+     */
+    public static final int RESAMPLE_LANCZOS = Resampler.FILTER_LANCZOS3;
+
+    /**
+     * Capture settings, time, camera model and the like.
+     */
+    public static final int METADATA_EXIF = JpegMetadata.SEGMENT_EXIF;
+    public static final int METADATA_XMP = JpegMetadata.SEGMENT_XMP;
+    public static final int METADATA_ICC_PROFILE = JpegMetadata.SEGMENT_ICC;
+
+    /**
+     * The GPS IFD, i.e. where the photo was taken.
+     */
+    public static final int EXIF_TAG_GPS = JpegMetadata.TAG_GPS_INFO;
+
+    private int maxWidth = 0;
+    private int maxHeight = 0;
+    private int scaleMode = SCALE_FIT;
+    private int requiredSizeBytes = 0;
+    private Rect cropRect;
+    private int outputFormat = OUTPUT_JPEG;
+    private int passThroughMode = PASS_THROUGH_REFERENCE;
+    private float minSsim = 0;
+    private int resampleFilter = RESAMPLE_BILINEAR;
+    private int keptMetadata = 0;
+    private int[] strippedExifTags = new int[0];
+
+    public ProcessingOptions() {
+    }
+
+    public ProcessingOptions(ProcessingOptions other) {
+        maxWidth = other.maxWidth;
+        maxHeight = other.maxHeight;
+        scaleMode = other.scaleMode;
+        requiredSizeBytes = other.requiredSizeBytes;
+        cropRect = other.cropRect != null ? new Rect(other.cropRect) : null;
+        outputFormat = other.outputFormat;
+        passThroughMode = other.passThroughMode;
+        minSsim = other.minSsim;
+        resampleFilter = other.resampleFilter;
+        keptMetadata = other.keptMetadata;
+        strippedExifTags = other.strippedExifTags.clone();
+    }
+
+    /**
+     * Options matching the legacy requiredSizePx / requiredSizeBytes pair: the shorter
+     * side of the result is requiredSizePx.
+     */
+    public static ProcessingOptions legacy(int requiredSizePx, int requiredSizeBytes) {
+        ProcessingOptions options = new ProcessingOptions();
+        options.setMaxSize(requiredSizePx, requiredSizePx);
+        options.setScaleMode(SCALE_FILL);
+        options.setRequiredSizeBytes(requiredSizeBytes);
+        return options;
+    }
+
+    /**
+     * Zero means the side is not limited.
+     */
+    public void setMaxSize(int maxWidth, int maxHeight) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    public void setScaleMode(int scaleMode) {
+        this.scaleMode = scaleMode;
+    }
+
+    public void setRequiredSizeBytes(int requiredSizeBytes) {
+        this.requiredSizeBytes = requiredSizeBytes;
+    }
+
+    /**
+     * Cuts this part of the upright source before scaling; the size limits and scale mode
+     * then apply to the cut. Null means the whole image.
+     */
+    public void setCropRect(Rect cropRect) {
+        this.cropRect = cropRect != null ? new Rect(cropRect) : null;
+    }
+
+    /**
+     * @param outputFormat one of {@link #OUTPUT_JPEG}, {@link #OUTPUT_WEBP}, {@link #OUTPUT_PNG},
+     *                     {@link #OUTPUT_AUTO}
+     */
+    public void setOutputFormat(int outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * How a source that already satisfies all constraints is returned without decoding.
+     *
+     * @param passThroughMode one of {@link #PASS_THROUGH_REFERENCE}, {@link #PASS_THROUGH_LINK},
+     *                        {@link #PASS_THROUGH_COPY}
+     */
+    public void setPassThroughMode(int passThroughMode) {
+        this.passThroughMode = passThroughMode;
+    }
+
+    /**
+     * Encodes JPEG and WebP at the lowest quality whose SSIM against the decoded image is
+     * at least this, instead of a fixed high quality. 0.98 is hard to tell apart from the
+     * original on a phone screen. 0 (the default) turns it off. A byte budget still applies
+     * on top.
+     */
+    public void setMinSsim(float minSsim) {
+        this.minSsim = minSsim;
+    }
+
+    /**
+     * How the decoded image is brought to the exact output size. The Java filters need the
+     * pixels twice in memory and fall back to bilinear when the job's memory budget doesn't
+     * allow it, for sources with transparency and for images decoded in strips.
+     *
+     * @param resampleFilter one of {@link #RESAMPLE_BILINEAR}, {@link #RESAMPLE_BOX},
+     *                       {@link #RESAMPLE_LANCZOS}
+     */
+    public void setResampleFilter(int resampleFilter) {
+        this.resampleFilter = resampleFilter;
+    }
+
+    /**
+     * Metadata of a JPEG source to carry over into a JPEG result. It is picked up while the
+     * header is read and costs no extra pass over the file, but counts against the byte
+     * budget. By default a re-encoded image has none, while a source that is passed through
+     * keeps all of its own.
+     *
+     * @param keptMetadata {@link #METADATA_EXIF}, {@link #METADATA_XMP} and
+     *                     {@link #METADATA_ICC_PROFILE} flags
+     */
+    public void setKeptMetadata(int keptMetadata) {
+        this.keptMetadata = keptMetadata;
+    }
+
+    /**
+     * EXIF tags to blank out in the carried over metadata, e.g. {@link #EXIF_TAG_GPS}.
+     * Sources are then never passed through, as their metadata can't be edited.
+     */
+    public void setStrippedExifTags(int... strippedExifTags) {
+        this.strippedExifTags = strippedExifTags != null ? strippedExifTags.clone() : new int[0];
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public int getScaleMode() {
+        return scaleMode;
+    }
+
+    public int getRequiredSizeBytes() {
+        return requiredSizeBytes;
+    }
+
+    public int getOutputFormat() {
+        return outputFormat;
+    }
+
+    public int getPassThroughMode() {
+        return passThroughMode;
+    }
+
+    public float getMinSsim() {
+        return minSsim;
+    }
+
+    public int getResampleFilter() {
+        return resampleFilter;
+    }
+
+    public int getKeptMetadata() {
+        return keptMetadata;
+    }
+
+    public int[] getStrippedExifTags() {
+        return strippedExifTags.clone();
+    }
+
+    public boolean hasStrippedExifTags() {
+        return strippedExifTags.length > 0;
+    }
+
+    public Rect getCropRect() {
+        return cropRect != null ? new Rect(cropRect) : null;
+    }
+
+    public boolean hasCropRect() {
+        return cropRect != null && !cropRect.isEmpty();
+    }
+
+    public boolean hasSizeLimit() {
+        return maxWidth > 0 || maxHeight > 0;
+    }
+
+    public boolean isEmpty() {
+        return !hasSizeLimit() && !hasCropRect() && requiredSizeBytes == 0 && outputFormat == OUTPUT_JPEG
+                && minSsim <= 0 && !hasStrippedExifTags();
+    }
+
+    /**
+     * Identifies the options in {@link ResultCache} keys.
+     */
+    String toKey() {
+        String key = "w" + maxWidth + "h" + maxHeight + "m" + scaleMode + "b" + requiredSizeBytes + "f" + outputFormat;
+        if(hasCropRect())
+            key += "c" + cropRect.toShortString();
+        if(minSsim > 0)
+            key += "s" + minSsim;
+        if(resampleFilter != RESAMPLE_BILINEAR)
+            key += "r" + resampleFilter;
+        if(keptMetadata != 0)
+            key += "k" + keptMetadata;
+        if(hasStrippedExifTags())
+            key += "x" + Arrays.toString(strippedExifTags);
+        return key;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(maxWidth);
+        dest.writeInt(maxHeight);
+        dest.writeInt(scaleMode);
+        dest.writeInt(requiredSizeBytes);
+        dest.writeParcelable(cropRect, flags);
+        dest.writeInt(outputFormat);
+        dest.writeInt(passThroughMode);
+        dest.writeFloat(minSsim);
+        dest.writeInt(resampleFilter);
+        dest.writeInt(keptMetadata);
+        dest.writeIntArray(strippedExifTags);
+    }
+
+    protected ProcessingOptions(Parcel in) {
+        maxWidth = in.readInt();
+        maxHeight = in.readInt();
+        scaleMode = in.readInt();
+        requiredSizeBytes = in.readInt();
+        cropRect = in.readParcelable(Rect.class.getClassLoader());
+        outputFormat = in.readInt();
+        passThroughMode = in.readInt();
+        minSsim = in.readFloat();
+        resampleFilter = in.readInt();
+        keptMetadata = in.readInt();
+        strippedExifTags = in.createIntArray();
+    }
+
+    public static final Creator<ProcessingOptions> CREATOR = new Creator<ProcessingOptions>() {
+        @Override
+        public ProcessingOptions createFromParcel(Parcel in) {
+            return new ProcessingOptions(in);
+        }
+
+        @Override
+        public ProcessingOptions[] newArray(int size) {
+            return new ProcessingOptions[size];
+        }
+    };
+}
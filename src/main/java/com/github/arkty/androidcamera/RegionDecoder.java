@@ -0,0 +1,128 @@
+package com.github.arkty.androidcamera;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+import com.github.arkty.androidcamera.core.ImageHeader;
+import com.github.arkty.androidcamera.core.Orientation;
+
+import java.io.IOException;
+
+/**
+ * Decodes only the part of the source that ends up in the result, through
+ * {@link BitmapRegionDecoder}. The region is decoded in horizontal strips that are drawn
+ * straight into the output bitmap, so peak memory is the output plus one strip no matter
+ * how large the source is.
+ */
+final class RegionDecoder {
+
+    private static final String TAG = "RegionDecoder";
+
+    static final int STRIP_BYTES = 2 * 1024 * 1024;
+
+    private RegionDecoder() {
+    }
+
+    static boolean isSupported(int format) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1)
+            return false;
+        if(format == ImageHeader.FORMAT_WEBP)
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+        return format == ImageHeader.FORMAT_JPEG || format == ImageHeader.FORMAT_PNG;
+    }
+
+    /**
+     * @param region {left, top, right, bottom} of the stored (not yet oriented) source
+     * @param target upright output size
+     * @param config of the strips and the result
+     * @return the upright, scaled region or null if the decoder failed
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    static Bitmap decode(ImageSource source, int[] region, int sample, int orientation, int[] target,
+                         Bitmap.Config config, BitmapPool pool, JobMetrics metrics) throws IOException {
+        BitmapRegionDecoder decoder = source.newRegionDecoder();
+        if(decoder == null)
+            return null;
+        try {
+            int regionW = region[2] - region[0];
+            int regionH = region[3] - region[1];
+            float sampledW = regionW / (float) sample;
+            float sampledH = regionH / (float) sample;
+            boolean swap = Orientation.swapsDimensions(orientation);
+
+            float[] a = Orientation.affine(orientation, sampledW, sampledH);
+            Matrix base = new Matrix();
+            base.setValues(new float[]{a[0], a[1], a[2], a[3], a[4], a[5], 0, 0, 1});
+            base.postScale(target[0] / (swap ? sampledH : sampledW), target[1] / (swap ? sampledW : sampledH));
+
+            Bitmap result = pool.get(target[0], target[1], config);
+            if(result == null)
+                result = Bitmap.createBitmap(target[0], target[1], config);
+            metrics.bitmapAllocated(result);
+            Canvas canvas = new Canvas(result);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+            int bpp = config == Bitmap.Config.RGB_565 ? 2 : 4;
+            int stripRows = Math.max(1, STRIP_BYTES / (Math.max(1, regionW / sample) * bpp)) * sample;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sample;
+            options.inPreferredConfig = config;
+            boolean reuse = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+            if(ImageProcessor.verbose)
+                Log.v(TAG, "region = " + regionW + "x" + regionH + ", sample = " + sample + ", strip = " + stripRows);
+
+            Bitmap strip = null;
+            for(int top = region[1]; top < region[3]; top += stripRows) {
+                int bottom = Math.min(region[3], top + stripRows);
+                // A shorter last strip would be clipped into the reused bitmap, so it gets its own
+                if(reuse && bottom - top == stripRows)
+                    options.inBitmap = strip;
+                else if(strip != null) {
+                    metrics.bitmapReleased(strip);
+                    pool.put(strip);
+                    strip = null;
+                }
+                if(reuse)
+                    options.inMutable = true;
+
+                Bitmap reused = options.inBitmap;
+                strip = decoder.decodeRegion(new Rect(region[0], top, region[2], bottom), options);
+                options.inBitmap = null;
+                if(strip == null) {
+                    pool.put(reused);
+                    metrics.bitmapReleased(result);
+                    pool.put(result);
+                    return null;
+                }
+                if(strip != reused) {
+                    metrics.bitmapAllocated(strip);
+                    if(reused != null) {
+                        metrics.bitmapReleased(reused);
+                        pool.put(reused);
+                    }
+                }
+
+                if(top == region[1] && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1)
+                    result.setHasAlpha(strip.hasAlpha());
+
+                Matrix matrix = new Matrix(base);
+                matrix.preTranslate(0, (top - region[1]) / (float) sample);
+                matrix.preScale(sampledW / strip.getWidth(), (bottom - top) / (float) sample / strip.getHeight());
+                canvas.drawBitmap(strip, matrix, paint);
+            }
+            metrics.bitmapReleased(strip);
+            pool.put(strip);
+            return result;
+        } finally {
+            decoder.recycle();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.arkty.androidcamera;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.github.arkty.androidcamera.core.EncodeBuffer;
+import com.github.arkty.androidcamera.core.JournaledLru;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of processed images keyed by source identity and processing options.
+ *
+ * Entries live in cacheDir/processed and are evicted least-recently-used once their total
+ * size exceeds the cap, see {@link JournaledLru}. Entry files belong to the cache and may
+ * go away at any time, so results are handed out through {@link #checkOut} as files of
+ * their own.
+ */
+public final class ResultCache extends JournaledLru {
+
+    private static final String TAG = "ResultCache";
+
+    private static final String DIR_NAME = "processed";
+
+    private static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private static ResultCache instance;
+
+    public static synchronized ResultCache getInstance(Context context) {
+        if(instance == null)
+            instance = new ResultCache(new File(context.getCacheDir(), DIR_NAME), DEFAULT_MAX_BYTES);
+        return instance;
+    }
+
+    /**
+     * Stable file-name-safe key for a source identity and an options key.
+     */
+    static String key(String sourceIdentity, String optionsKey) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return hex(md.digest((sourceIdentity + "\n" + optionsKey).getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ResultCache(File directory, long maxBytes) {
+        super(directory, maxBytes);
+    }
+
+    /**
+     * Returns the cached file or null. A hit refreshes the entry's recency.
+     */
+    public synchronized File get(String key) {
+        return lookup(key);
+    }
+
+    /**
+     * Links or copies the entry to a new file in dir, which belongs to the caller and
+     * survives eviction. Returns null on a miss. A hit refreshes the entry's recency.
+     */
+    public synchronized File checkOut(String key, File dir) throws IOException {
+        File file = get(key);
+        if(file == null)
+            return null;
+        String name = file.getName();
+        File out = File.createTempFile("image", name.substring(name.lastIndexOf('.')), dir);
+        copy(file, out);
+        return out;
+    }
+
+    /**
+     * Links or copies the file under the key. The file stays with the caller.
+     */
+    public void put(String key, String extension, File file) throws IOException {
+        File tmp = newTempFile(key);
+        try {
+            copy(file, tmp);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        commit(key, extension, tmp);
+    }
+
+    /**
+     * Writes the data under the key and returns the committed file, which may be evicted
+     * as soon as the next entry comes in.
+     */
+    public File put(String key, String extension, EncodeBuffer data) throws IOException {
+        File tmp = newTempFile(key);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            data.writeTo(out);
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        return commit(key, extension, tmp);
+    }
+
+    /**
+     * Where to write an entry before {@link #commit}; any stale file there is removed.
+     */
+    File newTempFile(String key) {
+        File tmp;
+        synchronized (this) {
+            open();
+            tmp = tempFile(key);
+        }
+        tmp.delete();
+        return tmp;
+    }
+
+    /**
+     * Moves a fully written temp file into place under the key and returns the entry file.
+     */
+    synchronized File commit(String key, String extension, File tmp) throws IOException {
+        return new File(getDirectory(), commitFile(key, key + extension, tmp).name);
+    }
+
+    public synchronized void remove(String key) {
+        removeEntry(key);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        to.delete();
+        if(!ImageSource.of(from.getAbsolutePath()).linkTo(to))
+            CopyEngine.getInstance().copy(from, to, null);
+    }
+
+    @Override
+    protected void onJournalError(String message, Exception e) {
+        Log.e(TAG, message, e);
+    }
+}
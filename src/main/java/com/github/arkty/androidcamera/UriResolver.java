@@ -1,21 +1,23 @@
 package com.github.arkty.androidcamera;
 
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * Author: Andrey Khitryy
@@ -26,13 +28,91 @@ public class UriResolver {
 
     private static final String TAG = "UriResolver";
 
+    private static final int CACHE_SIZE = 64;
+    private static final String NO_PATH = "";
+
+    private static final LruCache<String, String> resolved = new LruCache<>(CACHE_SIZE);
+    private static boolean observing;
+    private static volatile boolean cacheEnabled = true;
+
     private Context context;
+    private CopyEngine.ProgressListener copyProgressListener;
 
     public UriResolver(Context context) {
         this.context = context;
+        observeProviders(context.getApplicationContext());
     }
 
+    /**
+     * Receives progress of copying content that has no file path into the cache dir.
+     */
+    public void setCopyProgressListener(CopyEngine.ProgressListener copyProgressListener) {
+        this.copyProgressListener = copyProgressListener;
+    }
+
+    /**
+     * Resolves the Uri to a file, copying its content into the cache dir if it has no path.
+     */
     public String getAbsolutePath(final Uri uri) {
+        String filename = resolvePath(uri);
+        if(filename == null && uri.getAuthority() != null) {
+            return writeToTempfile(uri);
+        }
+        return filename;
+    }
+
+    /**
+     * Resolves the Uri to an existing file path without copying anything. Returns null when
+     * the content has no path of its own. Results are memoized until MediaStore or
+     * Downloads report a change, so repeated picks skip the provider queries.
+     */
+    public String resolvePath(final Uri uri) {
+        if(!cacheEnabled)
+            return queryPath(uri);
+
+        String key = uri.toString();
+        String cached = resolved.get(key);
+        if(cached != null) {
+            if(cached == NO_PATH)
+                return null;
+            if(new File(cached).exists())
+                return cached;
+        }
+
+        String filename = queryPath(uri);
+        resolved.put(key, filename != null ? filename : NO_PATH);
+        return filename;
+    }
+
+    /**
+     * Same as {@link #resolvePath(Uri)}, but the provider queries run on the worker pool
+     * and the listener is called on the main thread.
+     */
+    public void resolvePathAsync(final Uri uri, final OnResolvedListener listener) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        WorkerPool.getInstance().execute(new WorkerPool.Task(WorkerPool.PRIORITY_USER) {
+            @Override
+            public void run() {
+                deliver(resolvePath(uri));
+            }
+
+            @Override
+            protected void onRejected() {
+                deliver(null);
+            }
+
+            private void deliver(final String path) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResolved(uri, path);
+                    }
+                });
+            }
+        });
+    }
+
+    private String queryPath(final Uri uri) {
 
         String filename = null;
 
@@ -62,11 +142,6 @@ public class UriResolver {
             }
         }
 
-        if(filename == null) {
-            if(uri.getAuthority() != null) {
-                return writeToTempfile(uri);
-            }
-        }
         return filename;
     }
 
@@ -165,40 +240,42 @@ public class UriResolver {
         return null;
     }
 
-    private String writeToTempfile(Uri uri) {
-        InputStream is = null;
+    /**
+     * Copies the content into the {@link OriginalStore}, or finds it there from an earlier
+     * pick, and hands it out as a new file in the cache dir that belongs to the caller.
+     */
+    String writeToTempfile(Uri uri) {
         try {
-            is = context.getContentResolver().openInputStream(uri);
-
-            File file = createTempFile();
-            FileOutputStream output = new FileOutputStream(file);
-
-            int bufferSize = 1024;
-            byte[] buffer = new byte[bufferSize];
-            int len = 0;
-            while ((len = is.read(buffer)) != -1) {
-                output.write(buffer, 0, len);
-            }
-            output.close();
-            return file.getAbsolutePath();
-        } catch (FileNotFoundException e) {
+            return OriginalStore.getInstance(context).checkOut(context, uri, context.getCacheDir(),
+                    copyProgressListener).getAbsolutePath();
+        } catch (IOException | SecurityException e) {
             e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if(is != null)
-                    is.close();
-            } catch (IOException e) {
+        }
+        return null;
+    }
+
+    private static synchronized void observeProviders(Context context) {
+        if(observing)
+            return;
+        observing = true;
 
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                resolved.evictAll();
             }
+        };
+        ContentResolver resolver = context.getContentResolver();
+        try {
+            resolver.registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, observer);
+            resolver.registerContentObserver(Uri.parse("content://downloads/public_downloads"), true, observer);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Can't observe providers, path cache disabled", e);
+            cacheEnabled = false;
         }
-        return null;
     }
 
-    private File createTempFile() throws IOException {
-        File tempFile = File.createTempFile("pickedPhoto", ".jpg", context.getCacheDir());
-        tempFile.setWritable(true, false);
-        return tempFile;
+    public interface OnResolvedListener {
+        void onResolved(Uri uri, String path);
     }
 }
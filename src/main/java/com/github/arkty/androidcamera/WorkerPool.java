@@ -0,0 +1,196 @@
+package com.github.arkty.androidcamera;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Library-wide executor for image jobs.
+ *
+ * The pool has a fixed number of background-priority threads derived from the core count
+ * and a bounded priority queue. When the queue is full a task evicts the newest of the
+ * lowest-priority queued tasks, if that priority is below its own; otherwise it is
+ * rejected. Either way the dropped task is told so through {@link Task#onRejected()}.
+ *
+ * A second set of threads helps running tasks with data-parallel work, see
+ * {@link #getHelperExecutor()}.
+ */
+public final class WorkerPool {
+
+    private static final String TAG = "WorkerPool";
+
+    public static final int PRIORITY_BACKGROUND = 0;
+    public static final int PRIORITY_USER = 10;
+    public static final int PRIORITY_PREVIEW = 20;
+
+    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_CAPACITY = 16;
+
+    private static WorkerPool instance;
+
+    public static synchronized WorkerPool getInstance() {
+        if(instance == null)
+            instance = new WorkerPool();
+        return instance;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final BoundedPriorityQueue queue;
+    private final ThreadPoolExecutor helpers;
+
+    private WorkerPool() {
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_THREADS));
+        queue = new BoundedPriorityQueue(QUEUE_CAPACITY);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue,
+                new WorkerThreadFactory("ImageWorker-"), new EvictingPolicy());
+        helpers = new ThreadPoolExecutor(0, threads, 1L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new WorkerThreadFactory("ImageHelper-"), new HelperPolicy());
+    }
+
+    public void execute(Task task) {
+        executor.execute(task);
+    }
+
+    public int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Runs parts of a task's work next to it. Nothing is queued: a runnable is dropped when
+     * all helpers are busy, so the task has to be able to do the work itself. A dropped
+     * {@link Task} is told through {@link Task#onRejected()}.
+     */
+    public Executor getHelperExecutor() {
+        return helpers;
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Unit of work for the pool. Higher priority runs first, equal priorities run in
+     * submission order.
+     */
+    public static abstract class Task implements Runnable, Comparable<Task> {
+
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        private final int priority;
+        private final long sequence;
+
+        protected Task(int priority) {
+            this.priority = priority;
+            this.sequence = SEQUENCE.getAndIncrement();
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Called on the submitting thread when the task was dropped because the pool is saturated.
+         */
+        protected abstract void onRejected();
+
+        @Override
+        public int compareTo(Task another) {
+            if(priority != another.priority)
+                return priority > another.priority ? -1 : 1;
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private static class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+
+        private final int capacity;
+
+        BoundedPriorityQueue(int capacity) {
+            super(capacity);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Runnable runnable) {
+            return size() < capacity && super.offer(runnable);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, capacity - size());
+        }
+
+        /**
+         * Removes the newest of the lowest-priority tasks if it ranks below priority.
+         */
+        synchronized Task evictBelow(int priority) {
+            Task victim = null;
+            for(Object o : toArray()) {
+                Task t = (Task) o;
+                if(t.getPriority() < priority && (victim == null || t.compareTo(victim) > 0))
+                    victim = t;
+            }
+            if(victim != null && remove(victim))
+                return victim;
+            return null;
+        }
+    }
+
+    private class EvictingPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            Task task = (Task) r;
+            if(!executor.isShutdown()) {
+                Task victim = queue.evictBelow(task.getPriority());
+                if(victim != null) {
+                    Log.w(TAG, "Queue is full, evicted task of priority " + victim.getPriority());
+                    victim.onRejected();
+                    if(queue.offer(task))
+                        return;
+                }
+            }
+            Log.w(TAG, "Queue is full, task rejected");
+            task.onRejected();
+        }
+    }
+
+    private static class HelperPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if(r instanceof Task)
+                ((Task) r).onRejected();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final String prefix;
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, prefix + count.incrementAndGet());
+        }
+    }
+}
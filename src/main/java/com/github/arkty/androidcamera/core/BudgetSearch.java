@@ -0,0 +1,134 @@
+package com.github.arkty.androidcamera.core;
+
+/**
+ * Finds the largest encoding of an image that fits into a byte budget.
+ *
+ * Quality is searched first; only when the lowest acceptable quality is still over
+ * budget the image is scaled down and the quality search repeats. PNG has no quality,
+ * so there only the size is searched. All probes are encoded in memory, the caller
+ * writes the winning buffer once.
+ */
+public class BudgetSearch {
+
+    public static final int MAX_QUALITY = 97;
+    public static final int MIN_QUALITY = 50;
+    public static final int LOSSLESS_QUALITY = 100;
+
+    private static final int MIN_SIDE_PX = 64;
+    private static final float MAX_SCALE_STEP = 0.9f;
+    private static final float MIN_SCALE_STEP = 0.5f;
+
+    private final int budgetBytes;
+    private final int format;
+    private int maxQuality = MAX_QUALITY;
+
+    private EncodeBuffer best;
+    private EncodeBuffer probe;
+    private int quality;
+    private EncodableImage image;
+    private boolean fits;
+
+    public BudgetSearch(int budgetBytes) {
+        this(budgetBytes, ImageHeader.FORMAT_JPEG);
+    }
+
+    /**
+     * @param format one of the {@link ImageHeader} FORMAT_ constants
+     */
+    public BudgetSearch(int budgetBytes, int format) {
+        this.budgetBytes = budgetBytes;
+        this.format = format;
+    }
+
+    /**
+     * Caps the quality search, e.g. at the quality a {@link QualitySearch} found good
+     * enough. {@link #MAX_QUALITY} by default.
+     */
+    public void setMaxQuality(int maxQuality) {
+        this.maxQuality = Math.max(MIN_QUALITY, Math.min(MAX_QUALITY, maxQuality));
+    }
+
+    /**
+     * Runs the search using the two scratch buffers and returns the one holding the chosen
+     * encoding. {@link #getImage()} is the image that was actually encoded; when it differs
+     * from the argument the caller owns it.
+     */
+    public EncodeBuffer search(EncodableImage source, EncodeBuffer first, EncodeBuffer second) {
+        best = first;
+        probe = second;
+        image = source;
+
+        while(!(fits = searchQuality())) {
+            float step = (float) Math.sqrt((double) budgetBytes / best.size()) * MAX_SCALE_STEP;
+            step = Math.max(MIN_SCALE_STEP, Math.min(MAX_SCALE_STEP, step));
+            int w = Math.round(image.getWidth() * step);
+            int h = Math.round(image.getHeight() * step);
+            if(Math.min(w, h) < MIN_SIDE_PX)
+                break;
+
+            EncodableImage scaled = image.scale(w, h);
+            if(image != source)
+                image.release();
+            image = scaled;
+        }
+        return best;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public EncodableImage getImage() {
+        return image;
+    }
+
+    /**
+     * False when the budget could not be met even at the smallest allowed size.
+     */
+    public boolean fits() {
+        return fits;
+    }
+
+    /**
+     * Leaves the largest fitting encoding of the current image in {@link #best}, or the
+     * {@link #MIN_QUALITY} encoding when nothing fits.
+     */
+    private boolean searchQuality() {
+        if(format == ImageHeader.FORMAT_PNG) {
+            quality = LOSSLESS_QUALITY;
+            return encodeTo(best, LOSSLESS_QUALITY) <= budgetBytes;
+        }
+        if(encodeTo(best, maxQuality) <= budgetBytes) {
+            quality = maxQuality;
+            return true;
+        }
+        if(encodeTo(best, MIN_QUALITY) > budgetBytes) {
+            quality = MIN_QUALITY;
+            return false;
+        }
+
+        int lo = MIN_QUALITY;
+        int hi = maxQuality - 1;
+        quality = MIN_QUALITY;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if(encodeTo(probe, mid) <= budgetBytes) {
+                EncodeBuffer t = best;
+                best = probe;
+                probe = t;
+                quality = mid;
+                lo = mid;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return true;
+    }
+
+    private int encodeTo(EncodeBuffer buffer, int q) {
+        buffer.reset();
+        image.encode(format, q, buffer);
+        return buffer.size();
+    }
+}
@@ -0,0 +1,267 @@
+package com.github.arkty.androidcamera.core;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * File copy engine behind CopyEngine.
+ *
+ * Regular files go through {@link FileChannel#transferFrom}; pipes and plain streams are
+ * pumped through large pooled buffers. The target's blocks are reserved up front when
+ * the length is known and a {@link Preallocator} is set, progress is reported per chunk
+ * and every copy is added to the throughput {@link Stats}.
+ */
+public final class ChannelCopier {
+
+    public static final int FSYNC_NONE = 0;
+    public static final int FSYNC_ON_CLOSE = 1;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final long TRANSFER_CHUNK = 4 * 1024 * 1024;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> heapBuffers = new ConcurrentLinkedQueue<>();
+    private final Stats transferStats = new Stats();
+    private final Stats bufferedStats = new Stats();
+    private volatile int fsyncPolicy = FSYNC_NONE;
+    private volatile Preallocator preallocator;
+
+    /**
+     * @param fsyncPolicy {@link #FSYNC_NONE} or {@link #FSYNC_ON_CLOSE}
+     */
+    public void setFsyncPolicy(int fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Null (the default) writes the target as the data comes.
+     */
+    public void setPreallocator(Preallocator preallocator) {
+        this.preallocator = preallocator;
+    }
+
+    public long copy(File source, File target, ProgressListener listener) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            return copy(in.getChannel(), source.length(), target, listener);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param length expected length or -1 when unknown
+     */
+    public long copy(InputStream source, long length, File target, ProgressListener listener) throws IOException {
+        ByteBuffer buffer = acquire(heapBuffers, false);
+        RandomAccessFile out = openTarget(target, length);
+        long start = System.nanoTime();
+        long copied = 0;
+        try {
+            copied = pump(new StreamChannel(source), buffer, out.getChannel(), 0, length, listener);
+            finish(out, copied);
+        } finally {
+            out.close();
+            release(heapBuffers, buffer);
+        }
+        bufferedStats.add(copied, System.nanoTime() - start);
+        return copied;
+    }
+
+    /**
+     * Copies from the channel's current position.
+     *
+     * @param length size of a regular file, or -1 for pipes and other unsized sources
+     */
+    public long copy(FileChannel source, long length, File target, ProgressListener listener) throws IOException {
+        RandomAccessFile out = openTarget(target, length);
+        long start = System.nanoTime();
+        long copied = 0;
+        long buffered = 0;
+        try {
+            FileChannel dst = out.getChannel();
+            if(length >= 0) {
+                while(copied < length) {
+                    long n = dst.transferFrom(source, copied, Math.min(TRANSFER_CHUNK, length - copied));
+                    if(n <= 0)
+                        break;
+                    copied += n;
+                    if(listener != null)
+                        listener.onProgress(copied, length);
+                }
+            }
+
+            // Pipes have no length, and a file may have grown since it was stat'ed
+            ByteBuffer buffer = acquire(directBuffers, true);
+            try {
+                buffered = pump(source, buffer, dst, copied, length, listener) - copied;
+            } finally {
+                release(directBuffers, buffer);
+            }
+            finish(out, copied + buffered);
+        } finally {
+            out.close();
+        }
+
+        long nanos = System.nanoTime() - start;
+        if(buffered > 0)
+            bufferedStats.add(copied + buffered, nanos);
+        else
+            transferStats.add(copied, nanos);
+        return copied + buffered;
+    }
+
+    public Stats getTransferStats() {
+        return transferStats.snapshot();
+    }
+
+    public Stats getBufferedStats() {
+        return bufferedStats.snapshot();
+    }
+
+    private long pump(ReadableByteChannel source, ByteBuffer buffer, FileChannel dst, long position,
+                      long length, ProgressListener listener) throws IOException {
+        dst.position(position);
+        long copied = position;
+        buffer.clear();
+        while(source.read(buffer) != -1) {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                copied += dst.write(buffer);
+            }
+            buffer.clear();
+            if(listener != null)
+                listener.onProgress(copied, length);
+        }
+        return copied;
+    }
+
+    private RandomAccessFile openTarget(File target, long length) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(target, "rw");
+        Preallocator allocator = preallocator;
+        if(allocator != null && length > 0) {
+            // Only a hint: the copy works the same without the blocks reserved
+            try {
+                allocator.allocate(out.getFD(), length);
+            } catch (IOException e) {
+
+            }
+        }
+        return out;
+    }
+
+    private void finish(RandomAccessFile out, long copied) throws IOException {
+        if(out.length() != copied)
+            out.setLength(copied);
+        if(fsyncPolicy == FSYNC_ON_CLOSE)
+            out.getFD().sync();
+    }
+
+    private static ByteBuffer acquire(ConcurrentLinkedQueue<ByteBuffer> pool, boolean direct) {
+        ByteBuffer buffer = pool.poll();
+        if(buffer == null)
+            buffer = direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+        return buffer;
+    }
+
+    private static void release(ConcurrentLinkedQueue<ByteBuffer> pool, ByteBuffer buffer) {
+        if(pool.size() < MAX_POOLED_BUFFERS)
+            pool.offer(buffer);
+    }
+
+    /**
+     * Reserves disk blocks for a file about to be written. Setting the length alone
+     * doesn't, it only makes the file sparse.
+     */
+    public interface Preallocator {
+        void allocate(FileDescriptor fd, long length) throws IOException;
+    }
+
+    public interface ProgressListener {
+        /**
+         * @param total expected length or -1 when unknown
+         */
+        void onProgress(long copied, long total);
+    }
+
+    /**
+     * Accumulated throughput of one copy path.
+     */
+    public static class Stats {
+
+        private long copies;
+        private long bytes;
+        private long nanos;
+
+        synchronized void add(long bytes, long nanos) {
+            this.copies++;
+            this.bytes += bytes;
+            this.nanos += nanos;
+        }
+
+        synchronized Stats snapshot() {
+            Stats s = new Stats();
+            s.copies = copies;
+            s.bytes = bytes;
+            s.nanos = nanos;
+            return s;
+        }
+
+        public long getCopies() {
+            return copies;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getBytesPerSecond() {
+            return nanos > 0 ? (long) (bytes * 1e9 / nanos) : 0;
+        }
+    }
+
+    /**
+     * Reads an InputStream straight into a heap buffer's array, without the small
+     * intermediate copies of {@link java.nio.channels.Channels#newChannel(InputStream)}.
+     */
+    private static class StreamChannel implements ReadableByteChannel {
+
+        private final InputStream in;
+        private boolean open = true;
+
+        StreamChannel(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if(n > 0)
+                dst.position(dst.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
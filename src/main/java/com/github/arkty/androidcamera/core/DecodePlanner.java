@@ -0,0 +1,132 @@
+package com.github.arkty.androidcamera.core;
+
+/**
+ * Picks how to decode so that the pixel buffers of one job stay inside a byte budget.
+ * In order of preference: ARGB_8888 with a whole-frame decode, ARGB_8888 decoded in
+ * strips, the same two with 2 bytes per pixel when the source can't have alpha, and
+ * finally a smaller output. Only the last two change the result and are flagged.
+ */
+public final class DecodePlanner {
+
+    /**
+     * Pixels are decoded with 2 bytes each (RGB_565) instead of 4.
+     */
+    public static final int CHANGED_CONFIG = 1;
+    /**
+     * The output is smaller than requested.
+     */
+    public static final int CHANGED_SIZE = 2;
+
+    private static final float SHRINK_STEP = 0.75f;
+
+    private final long budgetBytes;
+    private final int stripBytes;
+
+    /**
+     * @param stripBytes size of one strip when decoding in strips
+     */
+    public DecodePlanner(long budgetBytes, int stripBytes) {
+        this.budgetBytes = budgetBytes;
+        this.stripBytes = stripBytes;
+    }
+
+    /**
+     * @param imageW     stored width of the whole source
+     * @param imageH     stored height of the whole source
+     * @param regionW    width of the part of the source that ends up in the result
+     * @param regionH    height of that part
+     * @param canTile    whether the source can be decoded in strips
+     * @return the cheapest plan that fits, or the smallest output if none does
+     */
+    public Plan plan(int imageW, int imageH, int regionW, int regionH, int targetW, int targetH,
+                     boolean mayHaveAlpha, boolean canTile) {
+        boolean partial = regionW < imageW || regionH < imageH;
+        float shrink = 1;
+        while(true) {
+            int w = Math.max(1, Math.round(targetW * shrink));
+            int h = Math.max(1, Math.round(targetH * shrink));
+            int sample = SizeCalculator.sampleSize(regionW, regionH, w, h);
+            int changes = shrink < 1 ? CHANGED_SIZE : 0;
+
+            for(int bpp = 4; bpp >= (mayHaveAlpha ? 4 : 2); bpp -= 2) {
+                int flags = bpp == 2 ? changes | CHANGED_CONFIG : changes;
+                long output = outputBytes(w, h, bpp);
+                if(!(partial && canTile)) {
+                    long full = sampled(imageW, sample) * sampled(imageH, sample) * bpp + output;
+                    if(full <= budgetBytes)
+                        return new Plan(sample, bpp, false, w, h, flags, full);
+                }
+                if(canTile) {
+                    long tiled = stripBytes(regionW, regionH, sample, bpp) + output;
+                    if(tiled <= budgetBytes)
+                        return new Plan(sample, bpp, true, w, h, flags, tiled);
+                }
+            }
+
+            if(w == 1 && h == 1) {
+                int bpp = mayHaveAlpha ? 4 : 2;
+                long bytes = canTile ? stripBytes(regionW, regionH, sample, bpp)
+                        : sampled(imageW, sample) * sampled(imageH, sample) * bpp;
+                return new Plan(sample, bpp, canTile, w, h, bpp == 2 ? changes | CHANGED_CONFIG : changes,
+                        bytes + outputBytes(w, h, bpp));
+            }
+            shrink *= SHRINK_STEP;
+        }
+    }
+
+    private static long sampled(int size, int sample) {
+        return (size + sample - 1) / sample;
+    }
+
+    /**
+     * The output bitmap plus a quarter of it for the compressed copy.
+     */
+    private static long outputBytes(int w, int h, int bpp) {
+        long bytes = (long) w * h * bpp;
+        return bytes + bytes / 4;
+    }
+
+    private long stripBytes(int regionW, int regionH, int sample, int bpp) {
+        long row = sampled(regionW, sample) * bpp;
+        long region = row * sampled(regionH, sample);
+        return Math.max(row, Math.min(stripBytes, region));
+    }
+
+    public static final class Plan {
+
+        public final int sampleSize;
+        /**
+         * 4 for ARGB_8888, 2 for RGB_565.
+         */
+        public final int bytesPerPixel;
+        /**
+         * Decode in strips rather than the whole frame at once.
+         */
+        public final boolean tiled;
+        public final int targetWidth;
+        public final int targetHeight;
+        /**
+         * {@link #CHANGED_CONFIG} and {@link #CHANGED_SIZE} flags, 0 when the result is as requested.
+         */
+        public final int changes;
+        public final long estimatedBytes;
+
+        Plan(int sampleSize, int bytesPerPixel, boolean tiled, int targetWidth, int targetHeight, int changes,
+             long estimatedBytes) {
+            this.sampleSize = sampleSize;
+            this.bytesPerPixel = bytesPerPixel;
+            this.tiled = tiled;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.changes = changes;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{sample = " + sampleSize + ", bpp = " + bytesPerPixel + (tiled ? ", tiled" : "")
+                    + ", target = (" + targetWidth + ", " + targetHeight + "), changes = " + changes
+                    + ", bytes = " + estimatedBytes + '}';
+        }
+    }
+}
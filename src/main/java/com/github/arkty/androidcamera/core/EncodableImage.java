@@ -0,0 +1,27 @@
+package com.github.arkty.androidcamera.core;
+
+/**
+ * Decoded pixels that {@link BudgetSearch} can encode and shrink. Implemented over
+ * Bitmap on the device and over BufferedImage in the benchmarks.
+ */
+public interface EncodableImage {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Appends the encoded image to the buffer.
+     *
+     * @param format one of the {@link ImageHeader} FORMAT_ constants
+     * @param quality 0..100, ignored by lossless formats
+     */
+    void encode(int format, int quality, EncodeBuffer out);
+
+    /**
+     * Returns a new image scaled to the given size. The receiver stays valid.
+     */
+    EncodableImage scale(int width, int height);
+
+    void release();
+}
@@ -0,0 +1,32 @@
+package com.github.arkty.androidcamera.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable in-memory encode target whose backing array survives {@link #reset()},
+ * so repeated encodes of similar images do not reallocate.
+ */
+public class EncodeBuffer extends ByteArrayOutputStream {
+
+    public EncodeBuffer(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Moves everything from offset on back by b.length and puts b in the gap.
+     */
+    public synchronized void insert(int offset, byte[] b) {
+        if(offset < 0 || offset > count)
+            throw new IndexOutOfBoundsException("offset = " + offset + ", size = " + count);
+        if(count + b.length > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + b.length));
+        System.arraycopy(buf, offset, buf, offset + b.length, count - offset);
+        System.arraycopy(b, 0, buf, offset, b.length);
+        count += b.length;
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.arkty.androidcamera.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The small JPEG most cameras embed in the EXIF block (IFD1), together with the
+ * orientation of the main image. Reading it touches only the first APP1 segment.
+ */
+public final class ExifThumbnail {
+
+    private static final int APP1 = 0xE1;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    /**
+     * Thumbnail JPEG bytes or null when there is none.
+     */
+    public final byte[] data;
+    /**
+     * Orientation of the main image, which the thumbnail shares.
+     */
+    public final int orientation;
+
+    ExifThumbnail(byte[] data, int orientation) {
+        this.data = data;
+        this.orientation = orientation;
+    }
+
+    /**
+     * Never returns null; a stream that isn't a JPEG with EXIF gives no data and
+     * {@link Orientation#NORMAL}.
+     */
+    public static ExifThumbnail read(InputStream in) throws IOException {
+        if(in.read() != 0xFF || in.read() != 0xD8)
+            return new ExifThumbnail(null, Orientation.NORMAL);
+
+        while(true) {
+            int marker = ImageHeader.nextMarker(in);
+            if(marker == 0xD8 || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01)
+                continue;
+            if(marker == 0xD9 || marker == 0xDA || (marker >= 0xC0 && marker <= 0xCF))
+                return new ExifThumbnail(null, Orientation.NORMAL);
+
+            int length = ImageHeader.readUint16(in) - 2;
+            if(length < 0)
+                return new ExifThumbnail(null, Orientation.NORMAL);
+            if(marker == APP1 && length >= 14) {
+                byte[] segment = new byte[length];
+                ImageHeader.readFully(in, segment, 0, length);
+                if(ImageHeader.isExif(segment))
+                    return new ExifThumbnail(thumbnail(segment), ImageHeader.exifOrientation(segment));
+                continue;
+            }
+            ImageHeader.skipFully(in, length);
+        }
+    }
+
+    /**
+     * Follows IFD0 to IFD1 and cuts out the JPEG it points at.
+     */
+    static byte[] thumbnail(byte[] segment) {
+        int tiff = 6;
+        boolean little = segment[tiff] == 'I';
+        int ifd0 = tiff + ImageHeader.int32(segment, tiff + 4, little);
+        if(ifd0 < tiff || ifd0 + 2 > segment.length)
+            return null;
+        int next = ifd0 + 2 + ImageHeader.uint16(segment, ifd0, little) * 12;
+        if(next + 4 > segment.length)
+            return null;
+        int ifd1 = ImageHeader.int32(segment, next, little);
+        if(ifd1 <= 0)
+            return null;
+        ifd1 += tiff;
+        if(ifd1 + 2 > segment.length)
+            return null;
+
+        int offset = -1;
+        int length = -1;
+        int count = ImageHeader.uint16(segment, ifd1, little);
+        for(int i = 0; i < count; i++) {
+            int entry = ifd1 + 2 + i * 12;
+            if(entry + 12 > segment.length)
+                break;
+            int tag = ImageHeader.uint16(segment, entry, little);
+            if(tag == TAG_THUMBNAIL_OFFSET)
+                offset = ImageHeader.int32(segment, entry + 8, little);
+            else if(tag == TAG_THUMBNAIL_LENGTH)
+                length = ImageHeader.int32(segment, entry + 8, little);
+        }
+        if(offset <= 0 || length <= 2 || tiff + offset + length > segment.length)
+            return null;
+        int start = tiff + offset;
+        if((segment[start] & 0xFF) != 0xFF || (segment[start + 1] & 0xFF) != 0xD8)
+            return null;
+
+        byte[] data = new byte[length];
+        System.arraycopy(segment, start, data, 0, length);
+        return data;
+    }
+}
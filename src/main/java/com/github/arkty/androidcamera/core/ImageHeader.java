@@ -0,0 +1,248 @@
+package com.github.arkty.androidcamera.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Format and dimensions read from the first bytes of a JPEG, PNG or WebP file, without
+ * touching the pixel data. For JPEG the EXIF orientation is picked up on the way to the
+ * frame header.
+ */
+public final class ImageHeader {
+
+    public static final int FORMAT_UNKNOWN = 0;
+    public static final int FORMAT_JPEG = 1;
+    public static final int FORMAT_PNG = 2;
+    public static final int FORMAT_WEBP = 3;
+
+    private static final ImageHeader UNKNOWN = new ImageHeader(FORMAT_UNKNOWN, 0, 0, Orientation.NORMAL);
+
+    private static final int APP1 = 0xE1;
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    public final int format;
+    /**
+     * Stored width, before orientation is applied.
+     */
+    public final int width;
+    public final int height;
+    /**
+     * One of the {@link Orientation} values.
+     */
+    public final int orientation;
+
+    ImageHeader(int format, int width, int height, int orientation) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+
+    public boolean isKnown() {
+        return format != FORMAT_UNKNOWN && width > 0 && height > 0;
+    }
+
+    /**
+     * Width after orientation is applied.
+     */
+    public int orientedWidth() {
+        return Orientation.swapsDimensions(orientation) ? height : width;
+    }
+
+    public int orientedHeight() {
+        return Orientation.swapsDimensions(orientation) ? width : height;
+    }
+
+    /**
+     * Reads just enough of the stream to find the dimensions. The stream is left positioned
+     * somewhere inside the header.
+     */
+    public static ImageHeader probe(InputStream in) throws IOException {
+        return probe(in, null);
+    }
+
+    /**
+     * Same as {@link #probe(InputStream)}, collecting the wanted APP segments of a JPEG
+     * into metadata as they go by.
+     */
+    public static ImageHeader probe(InputStream in, JpegMetadata metadata) throws IOException {
+        int b0 = in.read();
+        int b1 = in.read();
+        if(b0 == 0xFF && b1 == 0xD8)
+            return probeJpeg(in, metadata);
+        if(b0 == 0x89 && b1 == 'P')
+            return probePng(in);
+        if(b0 == 'R' && b1 == 'I')
+            return probeWebp(in);
+        return UNKNOWN;
+    }
+
+    private static ImageHeader probeJpeg(InputStream in, JpegMetadata metadata) throws IOException {
+        int orientation = Orientation.NORMAL;
+        boolean exifSeen = false;
+        while(true) {
+            int marker = nextMarker(in);
+            if(marker == 0xD8 || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01)
+                continue;
+            if(marker == 0xD9 || marker == 0xDA)
+                return UNKNOWN;
+
+            int length = readUint16(in) - 2;
+            // The length counts its own two bytes; less than that is a broken file
+            if(length < 0)
+                return UNKNOWN;
+            if(isSof(marker)) {
+                skipFully(in, 1);
+                int height = readUint16(in);
+                int width = readUint16(in);
+                return new ImageHeader(FORMAT_JPEG, width, height, orientation);
+            }
+            boolean wanted = metadata != null && metadata.wants(marker);
+            if((marker == APP1 && !exifSeen && length >= 14) || wanted) {
+                byte[] segment = new byte[length];
+                readFully(in, segment, 0, length);
+                if(marker == APP1 && !exifSeen && isExif(segment)) {
+                    exifSeen = true;
+                    orientation = exifOrientation(segment);
+                }
+                if(wanted)
+                    metadata.add(marker, segment);
+                continue;
+            }
+            skipFully(in, length);
+        }
+    }
+
+    private static ImageHeader probePng(InputStream in) throws IOException {
+        // Rest of the signature, IHDR length and type
+        skipFully(in, 6 + 4 + 4);
+        int width = readInt32(in);
+        int height = readInt32(in);
+        return new ImageHeader(FORMAT_PNG, width, height, Orientation.NORMAL);
+    }
+
+    private static ImageHeader probeWebp(InputStream in) throws IOException {
+        byte[] header = new byte[28];
+        readFully(in, header, 0, header.length);
+        // header[0] is at file offset 2
+        if(header[6] != 'W' || header[7] != 'E' || header[8] != 'B' || header[9] != 'P')
+            return UNKNOWN;
+
+        String chunk = new String(header, 10, 4, "US-ASCII");
+        if("VP8X".equals(chunk)) {
+            int width = 1 + uint24le(header, 22);
+            int height = 1 + uint24le(header, 25);
+            return new ImageHeader(FORMAT_WEBP, width, height, Orientation.NORMAL);
+        }
+        if("VP8L".equals(chunk) && (header[18] & 0xFF) == 0x2F) {
+            int bits = (header[19] & 0xFF) | (header[20] & 0xFF) << 8 | (header[21] & 0xFF) << 16 | (header[22] & 0xFF) << 24;
+            return new ImageHeader(FORMAT_WEBP, 1 + (bits & 0x3FFF), 1 + ((bits >> 14) & 0x3FFF), Orientation.NORMAL);
+        }
+        if("VP8 ".equals(chunk) && (header[21] & 0xFF) == 0x9D && (header[22] & 0xFF) == 0x01 && (header[23] & 0xFF) == 0x2A) {
+            int width = ((header[24] & 0xFF) | (header[25] & 0xFF) << 8) & 0x3FFF;
+            int height = ((header[26] & 0xFF) | (header[27] & 0xFF) << 8) & 0x3FFF;
+            return new ImageHeader(FORMAT_WEBP, width, height, Orientation.NORMAL);
+        }
+        return UNKNOWN;
+    }
+
+    static boolean isExif(byte[] segment) {
+        return segment.length >= 6 && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i'
+                && segment[3] == 'f' && segment[4] == 0 && segment[5] == 0;
+    }
+
+    /**
+     * Reads the orientation tag from IFD0 of an APP1 Exif segment (without the marker and length).
+     */
+    static int exifOrientation(byte[] segment) {
+        int tiff = 6;
+        if(segment.length < tiff + 8)
+            return Orientation.NORMAL;
+        boolean little = segment[tiff] == 'I';
+        int ifd = tiff + int32(segment, tiff + 4, little);
+        if(ifd < tiff || ifd + 2 > segment.length)
+            return Orientation.NORMAL;
+
+        int count = uint16(segment, ifd, little);
+        for(int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if(entry + 12 > segment.length)
+                break;
+            if(uint16(segment, entry, little) == TAG_ORIENTATION) {
+                int value = uint16(segment, entry + 8, little);
+                return Orientation.isValid(value) ? value : Orientation.NORMAL;
+            }
+        }
+        return Orientation.NORMAL;
+    }
+
+    static int uint16(byte[] b, int offset, boolean little) {
+        int b0 = b[offset] & 0xFF;
+        int b1 = b[offset + 1] & 0xFF;
+        return little ? b1 << 8 | b0 : b0 << 8 | b1;
+    }
+
+    static int int32(byte[] b, int offset, boolean little) {
+        return little ? uint16(b, offset + 2, true) << 16 | uint16(b, offset, true)
+                : uint16(b, offset, false) << 16 | uint16(b, offset + 2, false);
+    }
+
+    private static boolean isSof(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * Skips garbage and fill bytes up to the next marker and returns its code.
+     */
+    static int nextMarker(InputStream in) throws IOException {
+        int b;
+        do {
+            b = read(in);
+        } while(b != 0xFF);
+        do {
+            b = read(in);
+        } while(b == 0xFF);
+        return b;
+    }
+
+    static int readUint16(InputStream in) throws IOException {
+        return read(in) << 8 | read(in);
+    }
+
+    private static int readInt32(InputStream in) throws IOException {
+        return read(in) << 24 | read(in) << 16 | read(in) << 8 | read(in);
+    }
+
+    private static int uint24le(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16;
+    }
+
+    private static int read(InputStream in) throws IOException {
+        int b = in.read();
+        if(b < 0)
+            throw new EOFException();
+        return b;
+    }
+
+    static void readFully(InputStream in, byte[] b, int offset, int length) throws IOException {
+        while(length > 0) {
+            int n = in.read(b, offset, length);
+            if(n < 0)
+                throw new EOFException();
+            offset += n;
+            length -= n;
+        }
+    }
+
+    static void skipFully(InputStream in, long count) throws IOException {
+        while(count > 0) {
+            long n = in.skip(count);
+            if(n <= 0) {
+                read(in);
+                n = 1;
+            }
+            count -= n;
+        }
+    }
+}
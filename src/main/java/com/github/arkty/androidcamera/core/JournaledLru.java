@@ -0,0 +1,341 @@
+package com.github.arkty.androidcamera.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory of files evicted least-recently-used once their total size exceeds a cap.
+ *
+ * An append-only journal records puts, hits and removals, so opening replays a small
+ * text file instead of scanning the directory. Once most of its lines are redundant it is
+ * rewritten as one PUT per live entry. Subclasses may journal records of their own, see
+ * {@link #replayRecord} and {@link #writeRecords}.
+ *
+ * The protected methods expect the caller to hold the lock on this object.
+ */
+public abstract class JournaledLru {
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String PUT = "PUT";
+    private static final String GET = "GET";
+    private static final String DEL = "DEL";
+
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    private final File directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long size;
+    private Writer journal;
+    private boolean opened;
+    private int redundantOps;
+
+    protected JournaledLru(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Lower case hex digits of the bytes, for file-name-safe keys.
+     */
+    public static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        open();
+        trim(null);
+    }
+
+    public synchronized long getSize() {
+        open();
+        return size;
+    }
+
+    protected final File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Where to write an entry before {@link #commitFile}. Temp files left behind by process
+     * death are deleted on open.
+     */
+    protected final File tempFile(String name) {
+        return new File(directory, name + TMP_SUFFIX);
+    }
+
+    /**
+     * Returns the entry's file and refreshes its recency, or null if there is no such
+     * entry. An entry whose file has gone is dropped.
+     */
+    protected final File lookup(String key) {
+        open();
+        Entry entry = entries.get(key);
+        if(entry == null)
+            return null;
+        File file = new File(directory, entry.name);
+        if(!file.exists()) {
+            removeEntry(key);
+            return null;
+        }
+        append(GET, key);
+        return file;
+    }
+
+    protected final Entry getEntry(String key) {
+        return entries.get(key);
+    }
+
+    protected final boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Moves a fully written temp file into place as name, replacing any entry under the
+     * key, and evicts other entries until the total fits. Even an entry bigger than the
+     * cap stays until the next one comes in.
+     */
+    protected final Entry commitFile(String key, String name, File tmp) throws IOException {
+        open();
+        File file = new File(directory, name);
+        if(!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't commit " + file);
+        }
+        Entry entry = new Entry(name, file.length());
+        Entry old = entries.put(key, entry);
+        if(old != null) {
+            size -= old.size;
+            redundantOps++;
+            if(!old.name.equals(name))
+                new File(directory, old.name).delete();
+        }
+        size += entry.size;
+        append(PUT, key + " " + entry.size + " " + name);
+        trim(key);
+        return entry;
+    }
+
+    protected final void removeEntry(String key) {
+        open();
+        Entry entry = entries.remove(key);
+        if(entry != null) {
+            new File(directory, entry.name).delete();
+            size -= entry.size;
+            append(DEL, key);
+        }
+    }
+
+    /**
+     * Evicts least recently used entries other than keep and retained ones until the total
+     * fits the cap.
+     */
+    protected final void trim(String keep) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(size > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if(eldest.getKey().equals(keep) || eldest.getValue().isRetained())
+                continue;
+            new File(directory, eldest.getValue().name).delete();
+            size -= eldest.getValue().size;
+            it.remove();
+            append(DEL, eldest.getKey());
+        }
+    }
+
+    /**
+     * Journals a record of the subclass; it is replayed through {@link #replayRecord}.
+     */
+    protected final void append(String op, String args) {
+        if(journal == null)
+            return;
+        try {
+            journal.write(op + " " + args + "\n");
+            journal.flush();
+        } catch (IOException e) {
+            onJournalError("Can't append to journal", e);
+        }
+        if(!PUT.equals(op))
+            redundantOps++;
+        if(redundantOps >= COMPACT_THRESHOLD && redundantOps >= entries.size())
+            compact();
+    }
+
+    /**
+     * Replays a journal line this class doesn't know, split at spaces. Returns false if the
+     * subclass doesn't know it either, which makes the journal count as broken.
+     */
+    protected boolean replayRecord(String[] record) {
+        return false;
+    }
+
+    /**
+     * Writes the subclass records still needed when the journal is rewritten, after the
+     * live entries.
+     */
+    protected void writeRecords(Writer writer) throws IOException {
+    }
+
+    /**
+     * The journal was broken and everything has been deleted.
+     */
+    protected void onReset() {
+    }
+
+    protected abstract void onJournalError(String message, Exception e);
+
+    protected final void open() {
+        if(opened)
+            return;
+        opened = true;
+
+        if(!directory.exists() && !directory.mkdirs())
+            onJournalError("Can't create " + directory, null);
+
+        File journalFile = new File(directory, JOURNAL);
+        if(journalFile.exists()) {
+            try {
+                replay(journalFile);
+            } catch (IOException | NumberFormatException e) {
+                onJournalError("Journal is broken, starting over", e);
+                entries.clear();
+                size = 0;
+                deleteContents(false);
+                onReset();
+            }
+        }
+        else {
+            deleteContents(false);
+        }
+        deleteContents(true);
+        compact();
+    }
+
+    private void replay(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if(PUT.equals(parts[0]) && parts.length == 4) {
+                    Entry old = entries.put(parts[1], new Entry(parts[3], Long.parseLong(parts[2])));
+                    if(old != null)
+                        size -= old.size;
+                    size += Long.parseLong(parts[2]);
+                }
+                else if(GET.equals(parts[0]) && parts.length == 2) {
+                    entries.get(parts[1]);
+                }
+                else if(DEL.equals(parts[0]) && parts.length == 2) {
+                    Entry old = entries.remove(parts[1]);
+                    if(old != null)
+                        size -= old.size;
+                }
+                else if(!replayRecord(parts)) {
+                    throw new IOException("Unexpected journal line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Rewrites the journal as one PUT per live entry in recency order, followed by the
+     * subclass records.
+     */
+    private void compact() {
+        closeJournal();
+        File tmp = new File(directory, JOURNAL_TMP);
+        try {
+            Writer writer = new BufferedWriter(new FileWriter(tmp));
+            try {
+                for(Map.Entry<String, Entry> e : entries.entrySet()) {
+                    writer.write(PUT + " " + e.getKey() + " " + e.getValue().size + " " + e.getValue().name + "\n");
+                }
+                writeRecords(writer);
+            } finally {
+                writer.close();
+            }
+            if(!tmp.renameTo(new File(directory, JOURNAL)))
+                throw new IOException("Can't replace journal");
+            journal = new BufferedWriter(new FileWriter(new File(directory, JOURNAL), true));
+            redundantOps = 0;
+        } catch (IOException e) {
+            onJournalError("Can't write journal", e);
+        }
+    }
+
+    private void closeJournal() {
+        if(journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Deletes every file in the directory, or only the temp files.
+     */
+    private void deleteContents(boolean tempOnly) {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                if(!tempOnly || f.getName().endsWith(TMP_SUFFIX))
+                    f.delete();
+            }
+        }
+    }
+
+    public static final class Entry {
+        public final String name;
+        public final long size;
+        private int refs;
+
+        Entry(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        /**
+         * Keeps the entry from being evicted until the matching {@link #release}.
+         */
+        public void retain() {
+            refs++;
+        }
+
+        /**
+         * Returns false if the entry wasn't retained.
+         */
+        public boolean release() {
+            if(refs == 0)
+                return false;
+            refs--;
+            return true;
+        }
+
+        public boolean isRetained() {
+            return refs > 0;
+        }
+    }
+}
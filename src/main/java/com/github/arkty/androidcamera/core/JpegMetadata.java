@@ -0,0 +1,272 @@
+package com.github.arkty.androidcamera.core;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+/**
+ * APP1 (EXIF, XMP) and APP2 (ICC profile) segments of a source JPEG, collected by
+ * {@link ImageHeader#probe(java.io.InputStream, JpegMetadata)} on its way to the frame header and
+ * spliced into the encoded output right after its SOI/JFIF segments, so carrying metadata
+ * over costs no extra read of the source.
+ *
+ * The EXIF block is edited in place to describe the output: orientation is reset to
+ * normal, pixel dimensions are updated, the IFD1 thumbnail is unlinked and the values of
+ * denied tags are zeroed. Denying a pointer tag such as {@link #TAG_GPS_INFO} empties the
+ * whole IFD it points to. XMP is copied as is.
+ */
+public final class JpegMetadata {
+
+    public static final int SEGMENT_EXIF = 1;
+    public static final int SEGMENT_XMP = 2;
+    public static final int SEGMENT_ICC = 4;
+
+    public static final int TAG_GPS_INFO = 0x8825;
+
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_INTEROP_IFD = 0xA005;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    // Bytes per value by TIFF type, 0 for unknown types
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private static final byte[] XMP_ID = ascii("http://ns.adobe.com/xap/1.0/\0");
+    private static final byte[] XMP_EXTENSION_ID = ascii("http://ns.adobe.com/xmp/extension/\0");
+    private static final byte[] ICC_ID = ascii("ICC_PROFILE\0");
+
+    private static final int MAX_IFD_DEPTH = 3;
+
+    private final int segments;
+    private final int[] deniedTags;
+    private final ArrayList<byte[]> kept = new ArrayList<>();
+    private final ArrayList<Integer> markers = new ArrayList<>();
+    private boolean exifKept;
+    private int length;
+
+    /**
+     * @param segments   {@link #SEGMENT_EXIF}, {@link #SEGMENT_XMP} and {@link #SEGMENT_ICC} flags
+     * @param deniedTags EXIF tags whose values are zeroed, may be null
+     */
+    public JpegMetadata(int segments, int[] deniedTags) {
+        this.segments = segments;
+        this.deniedTags = deniedTags != null ? deniedTags.clone() : new int[0];
+    }
+
+    public boolean isEmpty() {
+        return kept.isEmpty();
+    }
+
+    /**
+     * Bytes the segments add to the output, markers included.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Whether segments with this marker have to be read.
+     */
+    boolean wants(int marker) {
+        return (marker == APP1 && (segments & (SEGMENT_EXIF | SEGMENT_XMP)) != 0)
+                || (marker == APP2 && (segments & SEGMENT_ICC) != 0);
+    }
+
+    /**
+     * Keeps the segment (without marker and length) if it is of a wanted kind.
+     */
+    void add(int marker, byte[] segment) {
+        boolean keep;
+        if(marker == APP1 && ImageHeader.isExif(segment))
+            keep = (segments & SEGMENT_EXIF) != 0 && !exifKept;
+        else if(marker == APP1)
+            keep = (segments & SEGMENT_XMP) != 0 && (startsWith(segment, XMP_ID) || startsWith(segment, XMP_EXTENSION_ID));
+        else
+            keep = marker == APP2 && (segments & SEGMENT_ICC) != 0 && startsWith(segment, ICC_ID);
+        if(!keep)
+            return;
+
+        if(marker == APP1 && ImageHeader.isExif(segment))
+            exifKept = true;
+        kept.add(segment);
+        markers.add(marker);
+        length += segment.length + 4;
+    }
+
+    /**
+     * Inserts the segments into an encoded JPEG of the given upright size.
+     *
+     * @return false, leaving the buffer as is, if it doesn't hold a JPEG
+     */
+    public boolean spliceInto(EncodeBuffer jpeg, int width, int height) {
+        byte[] b = jpeg.array();
+        int size = jpeg.size();
+        if(size < 4 || (b[0] & 0xFF) != 0xFF || (b[1] & 0xFF) != 0xD8)
+            return false;
+        if(kept.isEmpty())
+            return true;
+
+        // EXIF goes after JFIF when the encoder wrote one
+        int offset = 2;
+        if((b[2] & 0xFF) == 0xFF && (b[3] & 0xFF) == APP0 && size >= 6)
+            offset = Math.min(size, 4 + ImageHeader.uint16(b, 4, false));
+
+        byte[] block = new byte[length];
+        int pos = 0;
+        for(int i = 0; i < kept.size(); i++) {
+            byte[] segment = kept.get(i);
+            int marker = markers.get(i);
+            block[pos] = (byte) 0xFF;
+            block[pos + 1] = (byte) marker;
+            put16(block, pos + 2, segment.length + 2, false);
+            System.arraycopy(segment, 0, block, pos + 4, segment.length);
+            if(marker == APP1 && ImageHeader.isExif(segment))
+                editExif(block, pos + 4, segment.length, width, height);
+            pos += segment.length + 4;
+        }
+        jpeg.insert(offset, block);
+        return true;
+    }
+
+    /**
+     * @param start offset of the "Exif\0\0" header in b
+     */
+    private void editExif(byte[] b, int start, int length, int width, int height) {
+        int tiff = start + 6;
+        int end = start + length;
+        if(tiff + 8 > end)
+            return;
+        boolean little = b[tiff] == 'I';
+        int ifd0 = tiff + ImageHeader.int32(b, tiff + 4, little);
+        if(ifd0 < tiff || ifd0 + 2 > end)
+            return;
+
+        editIfd(b, tiff, end, ifd0, little, width, height, 0);
+        int next = ifd0 + 2 + ImageHeader.uint16(b, ifd0, little) * 12;
+        // The thumbnail shows the source as stored, not the output
+        if(next + 4 <= end)
+            put32(b, next, 0, little);
+    }
+
+    private void editIfd(byte[] b, int tiff, int end, int ifd, boolean little, int width, int height, int depth) {
+        int count = ImageHeader.uint16(b, ifd, little);
+        for(int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if(entry + 12 > end)
+                break;
+            int tag = ImageHeader.uint16(b, entry, little);
+            int type = ImageHeader.uint16(b, entry + 2, little);
+            boolean pointer = tag == TAG_EXIF_IFD || tag == TAG_GPS_INFO || tag == TAG_INTEROP_IFD;
+            int sub = tiff + ImageHeader.int32(b, entry + 8, little);
+            boolean validSub = pointer && depth < MAX_IFD_DEPTH && sub > tiff && sub + 2 <= end;
+
+            if(isDenied(tag)) {
+                if(validSub)
+                    clearIfd(b, tiff, end, sub, little, depth + 1);
+                else if(!pointer)
+                    clearValue(b, tiff, end, entry, little);
+            }
+            else if(validSub) {
+                editIfd(b, tiff, end, sub, little, width, height, depth + 1);
+            }
+            else if(tag == TAG_ORIENTATION && type == TYPE_SHORT) {
+                put16(b, entry + 8, Orientation.NORMAL, little);
+            }
+            else if(tag == TAG_PIXEL_X_DIMENSION || tag == TAG_IMAGE_WIDTH) {
+                setSize(b, entry, type, width, little);
+            }
+            else if(tag == TAG_PIXEL_Y_DIMENSION || tag == TAG_IMAGE_LENGTH) {
+                setSize(b, entry, type, height, little);
+            }
+        }
+    }
+
+    /**
+     * Zeroes every value of the IFD and leaves it with no entries.
+     */
+    private void clearIfd(byte[] b, int tiff, int end, int ifd, boolean little, int depth) {
+        int count = ImageHeader.uint16(b, ifd, little);
+        for(int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if(entry + 12 > end)
+                break;
+            int tag = ImageHeader.uint16(b, entry, little);
+            int sub = tiff + ImageHeader.int32(b, entry + 8, little);
+            if((tag == TAG_EXIF_IFD || tag == TAG_GPS_INFO || tag == TAG_INTEROP_IFD)
+                    && depth < MAX_IFD_DEPTH && sub > tiff && sub + 2 <= end)
+                clearIfd(b, tiff, end, sub, little, depth + 1);
+            else
+                clearValue(b, tiff, end, entry, little);
+            fill(b, entry, entry + 12);
+        }
+        put16(b, ifd, 0, little);
+    }
+
+    private static void clearValue(byte[] b, int tiff, int end, int entry, boolean little) {
+        int type = ImageHeader.uint16(b, entry + 2, little);
+        long size = (long) (type < TYPE_SIZES.length ? TYPE_SIZES[type] : 0) * (ImageHeader.int32(b, entry + 4, little) & 0xFFFFFFFFL);
+        if(size > 4) {
+            long offset = tiff + (ImageHeader.int32(b, entry + 8, little) & 0xFFFFFFFFL);
+            if(offset > tiff && offset + size <= end)
+                fill(b, (int) offset, (int) (offset + size));
+        }
+        fill(b, entry + 8, entry + 12);
+    }
+
+    private static void setSize(byte[] b, int entry, int type, int value, boolean little) {
+        if(type == TYPE_SHORT && value <= 0xFFFF)
+            put16(b, entry + 8, value, little);
+        else if(type == TYPE_LONG)
+            put32(b, entry + 8, value, little);
+    }
+
+    private boolean isDenied(int tag) {
+        for(int denied : deniedTags) {
+            if(denied == tag)
+                return true;
+        }
+        return false;
+    }
+
+    private static void fill(byte[] b, int from, int to) {
+        for(int i = from; i < to; i++) {
+            b[i] = 0;
+        }
+    }
+
+    private static void put16(byte[] b, int offset, int value, boolean little) {
+        b[offset + (little ? 0 : 1)] = (byte) value;
+        b[offset + (little ? 1 : 0)] = (byte) (value >> 8);
+    }
+
+    private static void put32(byte[] b, int offset, int value, boolean little) {
+        put16(b, offset + (little ? 0 : 2), value & 0xFFFF, little);
+        put16(b, offset + (little ? 2 : 0), value >>> 16, little);
+    }
+
+    private static boolean startsWith(byte[] segment, byte[] prefix) {
+        if(segment.length < prefix.length)
+            return false;
+        for(int i = 0; i < prefix.length; i++) {
+            if(segment[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
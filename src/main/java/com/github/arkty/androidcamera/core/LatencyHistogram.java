@@ -0,0 +1,85 @@
+package com.github.arkty.androidcamera.core;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of non-negative values: every power of two is split into 8
+ * buckets, so any percentile is reported within 12.5% of the recorded value while the
+ * whole range of a long fits in under 500 counters. Not thread safe.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+    private long sum;
+
+    public void record(long value) {
+        if(value < 0)
+            value = 0;
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        if(value > max)
+            max = value;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile, capped at the maximum.
+     *
+     * @param percentile 0..100
+     */
+    public long getPercentile(double percentile) {
+        if(count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        if(rank < 1)
+            rank = 1;
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if(seen >= rank)
+                return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+        sum = 0;
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.arkty.androidcamera.core;
+
+/**
+ * EXIF orientation values and the pixel transforms that undo them.
+ */
+public final class Orientation {
+
+    public static final int NORMAL = 1;
+    public static final int FLIP_HORIZONTAL = 2;
+    public static final int ROTATE_180 = 3;
+    public static final int FLIP_VERTICAL = 4;
+    public static final int TRANSPOSE = 5;
+    public static final int ROTATE_90 = 6;
+    public static final int TRANSVERSE = 7;
+    public static final int ROTATE_270 = 8;
+
+    private Orientation() {
+    }
+
+    public static boolean isValid(int orientation) {
+        return orientation >= NORMAL && orientation <= ROTATE_270;
+    }
+
+    /**
+     * True when the upright image has width and height swapped relative to the stored one.
+     */
+    public static boolean swapsDimensions(int orientation) {
+        return orientation >= TRANSPOSE && orientation <= ROTATE_270;
+    }
+
+    /**
+     * Affine transform {a, b, c, d, e, f} mapping a stored pixel (x, y) of a w x h image to
+     * its upright position: x' = a*x + b*y + c, y' = d*x + e*y + f.
+     */
+    public static float[] affine(int orientation, float w, float h) {
+        switch (orientation) {
+            case FLIP_HORIZONTAL:
+                return new float[]{-1, 0, w, 0, 1, 0};
+            case ROTATE_180:
+                return new float[]{-1, 0, w, 0, -1, h};
+            case FLIP_VERTICAL:
+                return new float[]{1, 0, 0, 0, -1, h};
+            case TRANSPOSE:
+                return new float[]{0, 1, 0, 1, 0, 0};
+            case ROTATE_90:
+                return new float[]{0, -1, h, 1, 0, 0};
+            case TRANSVERSE:
+                return new float[]{0, -1, h, -1, 0, w};
+            case ROTATE_270:
+                return new float[]{0, 1, 0, -1, 0, w};
+            default:
+                return new float[]{1, 0, 0, 0, 1, 0};
+        }
+    }
+
+    /**
+     * Writes the stored w x h ARGB pixels to dst upright, i.e. {@link #affine} applied to
+     * pixel arrays. dst is w x h, or h x w when the orientation swaps dimensions.
+     */
+    public static void transform(int orientation, int[] src, int w, int h, int[] dst) {
+        float[] m = affine(orientation, w, h);
+        int a = (int) m[0];
+        int b = (int) m[1];
+        int d = (int) m[3];
+        int e = (int) m[4];
+        // Pixel (x, y) spans to (x + 1, y + 1), so a flipped axis ends one pixel earlier
+        int c = (int) m[2] - (a < 0 || b < 0 ? 1 : 0);
+        int f = (int) m[5] - (d < 0 || e < 0 ? 1 : 0);
+        int outW = swapsDimensions(orientation) ? h : w;
+        for(int y = 0; y < h; y++) {
+            int row = y * w;
+            for(int x = 0; x < w; x++) {
+                dst[(d * x + e * y + f) * outW + a * x + b * y + c] = src[row + x];
+            }
+        }
+    }
+
+    /**
+     * Maps a rect {left, top, right, bottom} of the upright image back to the stored w x h
+     * image, i.e. the inverse of {@link #affine}.
+     */
+    public static int[] storedRect(int orientation, int w, int h, int[] rect) {
+        float[] m = affine(orientation, w, h);
+        int x0 = Math.round(m[0] * (rect[0] - m[2]) + m[3] * (rect[1] - m[5]));
+        int y0 = Math.round(m[1] * (rect[0] - m[2]) + m[4] * (rect[1] - m[5]));
+        int x1 = Math.round(m[0] * (rect[2] - m[2]) + m[3] * (rect[3] - m[5]));
+        int y1 = Math.round(m[1] * (rect[2] - m[2]) + m[4] * (rect[3] - m[5]));
+        return new int[]{Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1)};
+    }
+}
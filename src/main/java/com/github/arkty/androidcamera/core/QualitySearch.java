@@ -0,0 +1,102 @@
+package com.github.arkty.androidcamera.core;
+
+/**
+ * Finds the lowest encoder quality whose result still reaches a minimum {@link Ssim}
+ * score against the original. Runs on a small proxy of the image, so every probe is an
+ * encode and a decode of a few hundred thousand pixels at most. Assumes the score grows
+ * with quality and binary searches between {@link BudgetSearch#MIN_QUALITY} and
+ * {@link BudgetSearch#MAX_QUALITY}, so a byte budget applied afterwards searches the
+ * same range.
+ */
+public class QualitySearch {
+
+    private final double minScore;
+    private final int format;
+
+    private Proxy proxy;
+    private int[] reference;
+    private EncodeBuffer buffer;
+    private int quality;
+    private double score;
+
+    /**
+     * @param format one of the lossy {@link ImageHeader} FORMAT_ constants
+     */
+    public QualitySearch(double minScore, int format) {
+        this.minScore = minScore;
+        this.format = format;
+    }
+
+    /**
+     * Returns the chosen quality. When even the highest quality misses the score, that is
+     * the one returned.
+     */
+    public int search(Proxy proxy) {
+        this.proxy = proxy;
+        reference = proxy.getPixels();
+        buffer = new EncodeBuffer(proxy.getWidth() * proxy.getHeight() / 4);
+
+        int hi = BudgetSearch.MAX_QUALITY;
+        double hiScore = score(hi);
+        int lo = BudgetSearch.MIN_QUALITY;
+        if(hiScore >= minScore) {
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                double s = score(mid);
+                if(s >= minScore) {
+                    hi = mid;
+                    hiScore = s;
+                }
+                else {
+                    lo = mid + 1;
+                }
+            }
+        }
+        quality = hi;
+        score = hiScore;
+        return quality;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * Score of the chosen quality on the proxy.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Score of another quality on the proxy of the last search, for when a byte budget
+     * forced the quality lower than the one found.
+     */
+    public double score(int q) {
+        buffer.reset();
+        proxy.encode(format, q, buffer);
+        return Ssim.compare(reference, proxy.decode(buffer), proxy.getWidth(), proxy.getHeight());
+    }
+
+    /**
+     * Downscaled stand-in for the image being encoded.
+     */
+    public interface Proxy {
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * ARGB pixels, row by row.
+         */
+        int[] getPixels();
+
+        void encode(int format, int quality, EncodeBuffer out);
+
+        /**
+         * Pixels of the encoded proxy, same size and layout as {@link #getPixels()}.
+         */
+        int[] decode(EncodeBuffer encoded);
+    }
+}
@@ -0,0 +1,292 @@
+package com.github.arkty.androidcamera.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Separable resize of ARGB pixel arrays to an exact size with an area-averaging box or a
+ * Lanczos filter, as a horizontal pass into an intermediate array followed by a vertical
+ * one. Filter weights are computed once per call in fixed point; the row loops allocate
+ * nothing.
+ *
+ * Each pass is cut into stripes of rows. The calling thread works through them together
+ * with helpers started on the executor, so it never waits for a helper that hasn't
+ * started and an executor that is busy or drops the helpers only costs parallelism.
+ *
+ * Channels are filtered independently, so pixels with partial alpha should be
+ * premultiplied.
+ */
+public final class Resampler {
+
+    /**
+     * Averages the source pixels each output pixel covers. Sharpest without ringing.
+     */
+    public static final int FILTER_BOX = 0;
+    /**
+     * Lanczos with 3 lobes. Keeps more detail than box at the cost of slight ringing on
+     * hard edges and about three times the work.
+     */
+    public static final int FILTER_LANCZOS3 = 1;
+
+    private static final int PRECISION_BITS = 22;
+    private static final int HALF = 1 << (PRECISION_BITS - 1);
+    // More stripes than threads so a slow one doesn't hold up the pass
+    private static final int STRIPES_PER_THREAD = 4;
+
+    private final int filter;
+    private final Executor executor;
+    private final int parallelism;
+
+    /**
+     * @param executor    runs the helpers, null to do all the work on the calling thread
+     * @param parallelism threads to use including the calling one
+     */
+    public Resampler(int filter, Executor executor, int parallelism) {
+        this.filter = filter;
+        this.executor = executor;
+        this.parallelism = executor != null ? Math.max(1, parallelism) : 1;
+    }
+
+    /**
+     * @param src ARGB pixels of the source, row by row
+     * @param dst receives dstW x dstH ARGB pixels, row by row
+     */
+    public void resample(int[] src, int srcW, int srcH, int[] dst, int dstW, int dstH) {
+        if(srcW <= 0 || srcH <= 0 || dstW <= 0 || dstH <= 0 || src.length < srcW * srcH || dst.length < dstW * dstH)
+            throw new IllegalArgumentException("Bad size " + srcW + "x" + srcH + " -> " + dstW + "x" + dstH);
+
+        if(dstH == srcH) {
+            if(dstW == srcW)
+                System.arraycopy(src, 0, dst, 0, dstW * dstH);
+            else
+                stripe(new HorizontalPass(src, srcW, dst, dstW, kernel(srcW, dstW)), srcH);
+            return;
+        }
+
+        int[] tmp = src;
+        if(dstW != srcW) {
+            tmp = new int[dstW * srcH];
+            stripe(new HorizontalPass(src, srcW, tmp, dstW, kernel(srcW, dstW)), srcH);
+        }
+        stripe(new VerticalPass(tmp, dst, dstW, kernel(srcH, dstH)), dstH);
+    }
+
+    /**
+     * Bytes allocated by {@link #resample} on top of the source and destination arrays.
+     */
+    public static long scratchBytes(int srcW, int srcH, int dstW, int dstH) {
+        return dstW != srcW && dstH != srcH ? (long) dstW * srcH * 4 : 0;
+    }
+
+    private void stripe(final Pass pass, final int rows) {
+        final int stripes = Math.min(rows, parallelism == 1 ? 1 : parallelism * STRIPES_PER_THREAD);
+        if(stripes == 1) {
+            pass.rows(0, rows);
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(stripes);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int s;
+                while((s = next.getAndIncrement()) < stripes) {
+                    try {
+                        pass.rows((int) ((long) s * rows / stripes), (int) ((long) (s + 1) * rows / stripes));
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        for(int i = 1; i < parallelism; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+
+        // Whatever is left was claimed by a running helper
+        boolean interrupted = false;
+        while(true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        if(failure.get() != null)
+            throw failure.get();
+    }
+
+    /**
+     * Weights of every output pixel along one axis: bounds holds the first input pixel and
+     * the number of taps, weights holds the taps at a fixed stride.
+     */
+    private Kernel kernel(int inSize, int outSize) {
+        double scale = inSize / (double) outSize;
+        double filterScale = Math.max(scale, 1);
+        double support = (filter == FILTER_LANCZOS3 ? 3 : 0.5) * filterScale;
+        int taps = (int) Math.ceil(support) * 2 + 1;
+
+        int[] bounds = new int[outSize * 2];
+        int[] weights = new int[outSize * taps];
+        double[] k = new double[taps];
+        for(int o = 0; o < outSize; o++) {
+            double center = (o + 0.5) * scale;
+            int min = Math.max(0, (int) (center - support + 0.5));
+            int count = Math.min(Math.min(inSize, (int) (center + support + 0.5)) - min, taps);
+
+            double sum = 0;
+            for(int i = 0; i < count; i++) {
+                k[i] = weight((i + min - center + 0.5) / filterScale);
+                sum += k[i];
+            }
+            for(int i = 0; i < count; i++) {
+                weights[o * taps + i] = (int) Math.round((sum != 0 ? k[i] / sum : 0) * (1 << PRECISION_BITS));
+            }
+            bounds[o * 2] = min;
+            bounds[o * 2 + 1] = count;
+        }
+        return new Kernel(bounds, weights, taps);
+    }
+
+    private double weight(double x) {
+        if(filter == FILTER_LANCZOS3) {
+            if(x <= -3 || x >= 3)
+                return 0;
+            return sinc(x) * sinc(x / 3);
+        }
+        return x > -0.5 && x <= 0.5 ? 1 : 0;
+    }
+
+    private static double sinc(double x) {
+        if(x == 0)
+            return 1;
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+
+    private static int clip(int v) {
+        v >>= PRECISION_BITS;
+        return (v & ~0xFF) == 0 ? v : (v < 0 ? 0 : 0xFF);
+    }
+
+    private static final class Kernel {
+        final int[] bounds;
+        final int[] weights;
+        final int taps;
+
+        Kernel(int[] bounds, int[] weights, int taps) {
+            this.bounds = bounds;
+            this.weights = weights;
+            this.taps = taps;
+        }
+    }
+
+    private interface Pass {
+        /**
+         * Fills output rows [from, to) of the pass.
+         */
+        void rows(int from, int to);
+    }
+
+    private static final class HorizontalPass implements Pass {
+        private final int[] in;
+        private final int inW;
+        private final int[] out;
+        private final int outW;
+        private final Kernel kernel;
+
+        HorizontalPass(int[] in, int inW, int[] out, int outW, Kernel kernel) {
+            this.in = in;
+            this.inW = inW;
+            this.out = out;
+            this.outW = outW;
+            this.kernel = kernel;
+        }
+
+        @Override
+        public void rows(int from, int to) {
+            int[] bounds = kernel.bounds;
+            int[] weights = kernel.weights;
+            int taps = kernel.taps;
+            for(int y = from; y < to; y++) {
+                int inRow = y * inW;
+                int outRow = y * outW;
+                for(int x = 0; x < outW; x++) {
+                    int p0 = inRow + bounds[x * 2];
+                    int count = bounds[x * 2 + 1];
+                    int w0 = x * taps;
+                    int a = HALF;
+                    int r = HALF;
+                    int g = HALF;
+                    int b = HALF;
+                    for(int i = 0; i < count; i++) {
+                        int p = in[p0 + i];
+                        int w = weights[w0 + i];
+                        a += (p >>> 24) * w;
+                        r += ((p >> 16) & 0xFF) * w;
+                        g += ((p >> 8) & 0xFF) * w;
+                        b += (p & 0xFF) * w;
+                    }
+                    out[outRow + x] = clip(a) << 24 | clip(r) << 16 | clip(g) << 8 | clip(b);
+                }
+            }
+        }
+    }
+
+    private static final class VerticalPass implements Pass {
+        private final int[] in;
+        private final int[] out;
+        private final int width;
+        private final Kernel kernel;
+
+        VerticalPass(int[] in, int[] out, int width, Kernel kernel) {
+            this.in = in;
+            this.out = out;
+            this.width = width;
+            this.kernel = kernel;
+        }
+
+        @Override
+        public void rows(int from, int to) {
+            int[] bounds = kernel.bounds;
+            int[] weights = kernel.weights;
+            int taps = kernel.taps;
+            for(int y = from; y < to; y++) {
+                int p0 = bounds[y * 2] * width;
+                int count = bounds[y * 2 + 1];
+                int w0 = y * taps;
+                int outRow = y * width;
+                for(int x = 0; x < width; x++) {
+                    int a = HALF;
+                    int r = HALF;
+                    int g = HALF;
+                    int b = HALF;
+                    for(int i = 0; i < count; i++) {
+                        int p = in[p0 + i * width + x];
+                        int w = weights[w0 + i];
+                        a += (p >>> 24) * w;
+                        r += ((p >> 16) & 0xFF) * w;
+                        g += ((p >> 8) & 0xFF) * w;
+                        b += (p & 0xFF) * w;
+                    }
+                    out[outRow + x] = clip(a) << 24 | clip(r) << 16 | clip(g) << 8 | clip(b);
+                }
+            }
+        }
+    }
+}
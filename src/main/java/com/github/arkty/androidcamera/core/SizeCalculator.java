@@ -0,0 +1,78 @@
+package com.github.arkty.androidcamera.core;
+
+/**
+ * Pure size arithmetic for the processing pipeline.
+ */
+public final class SizeCalculator {
+
+    /**
+     * Scale down to fit inside maxWidth x maxHeight, keeping the aspect ratio.
+     */
+    public static final int SCALE_FIT = 0;
+    /**
+     * Scale down until the image covers maxWidth x maxHeight, keeping the aspect ratio.
+     */
+    public static final int SCALE_FILL = 1;
+    /**
+     * Same as {@link #SCALE_FILL}, then cut the centered maxWidth x maxHeight part.
+     */
+    public static final int SCALE_CENTER_CROP = 2;
+
+    private SizeCalculator() {
+    }
+
+    /**
+     * Size of the whole source after scaling with the given mode. Never upscales.
+     * For {@link #SCALE_CENTER_CROP} this is the size before cropping.
+     */
+    public static int[] scaledSize(int srcW, int srcH, int maxW, int maxH, int mode) {
+        float scale = scale(srcW, srcH, maxW, maxH, mode);
+        return new int[]{
+                Math.max(1, Math.round(srcW * scale)),
+                Math.max(1, Math.round(srcH * scale))
+        };
+    }
+
+    /**
+     * Final output size: the scaled size, cut to the box for center crop.
+     */
+    public static int[] targetSize(int srcW, int srcH, int maxW, int maxH, int mode) {
+        int[] size = scaledSize(srcW, srcH, maxW, maxH, mode);
+        if(mode == SCALE_CENTER_CROP) {
+            if(maxW > 0)
+                size[0] = Math.min(size[0], maxW);
+            if(maxH > 0)
+                size[1] = Math.min(size[1], maxH);
+        }
+        return size;
+    }
+
+    /**
+     * Largest power of two that keeps the subsampled source at least as big as the
+     * scaled size, so the precise scale step only ever shrinks.
+     */
+    public static int sampleSize(int srcW, int srcH, int scaledW, int scaledH) {
+        int sample = 1;
+        while(srcW / (sample * 2) >= scaledW && srcH / (sample * 2) >= scaledH) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    private static float scale(int srcW, int srcH, int maxW, int maxH, int mode) {
+        float sx = maxW > 0 ? (float) maxW / srcW : Float.NaN;
+        float sy = maxH > 0 ? (float) maxH / srcH : Float.NaN;
+        float scale;
+        if(Float.isNaN(sx) && Float.isNaN(sy))
+            scale = 1f;
+        else if(Float.isNaN(sx))
+            scale = sy;
+        else if(Float.isNaN(sy))
+            scale = sx;
+        else if(mode == SCALE_FIT)
+            scale = Math.min(sx, sy);
+        else
+            scale = Math.max(sx, sy);
+        return Math.min(1f, scale);
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.arkty.androidcamera.core;
+
+/**
+ * Structural similarity of two equally sized images, computed on luma over 8x8 windows
+ * that overlap by half. 1 means identical; visually lossless photos usually score above
+ * 0.98.
+ */
+public final class Ssim {
+
+    private static final int WINDOW = 8;
+    private static final int STRIDE = 4;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    private Ssim() {
+    }
+
+    /**
+     * @param reference ARGB pixels, row by row
+     * @param candidate ARGB pixels of the same size
+     * @return mean SSIM over all windows
+     */
+    public static double compare(int[] reference, int[] candidate, int width, int height) {
+        if(width <= 0 || height <= 0 || reference.length < width * height || candidate.length < width * height)
+            throw new IllegalArgumentException("Bad size " + width + "x" + height);
+
+        float[] a = luma(reference, width * height);
+        float[] b = luma(candidate, width * height);
+        int windowW = Math.min(WINDOW, width);
+        int windowH = Math.min(WINDOW, height);
+
+        double sum = 0;
+        int windows = 0;
+        for(int y = 0; y + windowH <= height; y += STRIDE) {
+            for(int x = 0; x + windowW <= width; x += STRIDE) {
+                sum += window(a, b, width, x, y, windowW, windowH);
+                windows++;
+            }
+        }
+        return sum / windows;
+    }
+
+    private static double window(float[] a, float[] b, int stride, int x0, int y0, int w, int h) {
+        double sumA = 0;
+        double sumB = 0;
+        double sumAA = 0;
+        double sumBB = 0;
+        double sumAB = 0;
+        for(int y = y0; y < y0 + h; y++) {
+            int row = y * stride;
+            for(int x = x0; x < x0 + w; x++) {
+                double va = a[row + x];
+                double vb = b[row + x];
+                sumA += va;
+                sumB += vb;
+                sumAA += va * va;
+                sumBB += vb * vb;
+                sumAB += va * vb;
+            }
+        }
+        int n = w * h;
+        double meanA = sumA / n;
+        double meanB = sumB / n;
+        double varA = sumAA / n - meanA * meanA;
+        double varB = sumBB / n - meanB * meanB;
+        double cov = sumAB / n - meanA * meanB;
+        return ((2 * meanA * meanB + C1) * (2 * cov + C2))
+                / ((meanA * meanA + meanB * meanB + C1) * (varA + varB + C2));
+    }
+
+    private static float[] luma(int[] argb, int count) {
+        float[] luma = new float[count];
+        for(int i = 0; i < count; i++) {
+            int p = argb[i];
+            luma[i] = 0.299f * ((p >> 16) & 0xff) + 0.587f * ((p >> 8) & 0xff) + 0.114f * (p & 0xff);
+        }
+        return luma;
+    }
+}
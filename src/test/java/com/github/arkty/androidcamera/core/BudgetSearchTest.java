@@ -0,0 +1,128 @@
+package com.github.arkty.androidcamera.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BudgetSearchTest {
+
+    @Test
+    public void keepsMaxQualityWhenItFits() {
+        FakeImage image = new FakeImage(100, 100);
+        BudgetSearch search = new BudgetSearch(image.bytes(BudgetSearch.MAX_QUALITY));
+        EncodeBuffer best = search(search, image);
+        assertTrue(search.fits());
+        assertEquals(BudgetSearch.MAX_QUALITY, search.getQuality());
+        assertSame(image, search.getImage());
+        assertEquals(image.bytes(BudgetSearch.MAX_QUALITY), best.size());
+    }
+
+    @Test
+    public void findsHighestQualityInBudget() {
+        FakeImage image = new FakeImage(100, 100);
+        BudgetSearch search = new BudgetSearch(image.bytes(73) + 50);
+        EncodeBuffer best = search(search, image);
+        assertTrue(search.fits());
+        assertEquals(73, search.getQuality());
+        assertSame(image, search.getImage());
+        assertEquals(image.bytes(73), best.size());
+    }
+
+    @Test
+    public void scalesDownBelowMinQuality() {
+        FakeImage image = new FakeImage(1000, 800);
+        int budget = image.bytes(BudgetSearch.MIN_QUALITY) / 3;
+        BudgetSearch search = new BudgetSearch(budget);
+        EncodeBuffer best = search(search, image);
+        assertTrue(search.fits());
+        assertTrue(best.size() <= budget);
+        assertTrue(search.getImage().getWidth() < 1000);
+        // The aspect ratio survives the scaling
+        assertEquals(1.25, (double) search.getImage().getWidth() / search.getImage().getHeight(), 0.01);
+        assertTrue(search.getQuality() >= BudgetSearch.MIN_QUALITY);
+    }
+
+    @Test
+    public void givesUpAtMinimumSide() {
+        FakeImage image = new FakeImage(1000, 1000);
+        BudgetSearch search = new BudgetSearch(1);
+        search(search, image);
+        assertFalse(search.fits());
+        assertEquals(BudgetSearch.MIN_QUALITY, search.getQuality());
+        assertTrue(search.getImage().getWidth() >= 64);
+    }
+
+    @Test
+    public void pngOnlyScales() {
+        FakeImage image = new FakeImage(400, 400);
+        BudgetSearch search = new BudgetSearch(image.bytes(BudgetSearch.LOSSLESS_QUALITY) / 2, ImageHeader.FORMAT_PNG);
+        search(search, image);
+        assertTrue(search.fits());
+        assertEquals(BudgetSearch.LOSSLESS_QUALITY, search.getQuality());
+        assertTrue(search.getImage().getWidth() < 400);
+    }
+
+    @Test
+    public void maxQualityCapsTheSearch() {
+        FakeImage image = new FakeImage(100, 100);
+        BudgetSearch search = new BudgetSearch(Integer.MAX_VALUE);
+        search.setMaxQuality(80);
+        search(search, image);
+        assertEquals(80, search.getQuality());
+
+        search = new BudgetSearch(Integer.MAX_VALUE);
+        search.setMaxQuality(10);
+        search(search, image);
+        assertEquals(BudgetSearch.MIN_QUALITY, search.getQuality());
+    }
+
+    private static EncodeBuffer search(BudgetSearch search, EncodableImage image) {
+        return search.search(image, new EncodeBuffer(1024), new EncodeBuffer(1024));
+    }
+
+    /**
+     * Encodes to a byte per pixel at quality 100, shrinking linearly with the quality.
+     */
+    static class FakeImage implements EncodableImage {
+
+        private final int width;
+        private final int height;
+
+        FakeImage(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        int bytes(int quality) {
+            return width * height * quality / 100;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void encode(int format, int quality, EncodeBuffer out) {
+            int q = format == ImageHeader.FORMAT_PNG ? BudgetSearch.LOSSLESS_QUALITY : quality;
+            out.write(new byte[bytes(q)], 0, bytes(q));
+        }
+
+        @Override
+        public EncodableImage scale(int width, int height) {
+            return new FakeImage(width, height);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
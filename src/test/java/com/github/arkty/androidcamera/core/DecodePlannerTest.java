@@ -0,0 +1,67 @@
+package com.github.arkty.androidcamera.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DecodePlannerTest {
+
+    private static final int STRIP_BYTES = 1024 * 1024;
+
+    @Test
+    public void wholeFrameWhenItFits() {
+        DecodePlanner.Plan plan = new DecodePlanner(100L * 1024 * 1024, STRIP_BYTES)
+                .plan(4000, 3000, 4000, 3000, 1000, 750, true, true);
+        assertEquals(4, plan.sampleSize);
+        assertEquals(4, plan.bytesPerPixel);
+        assertFalse(plan.tiled);
+        assertEquals(0, plan.changes);
+        assertEquals(1000, plan.targetWidth);
+        assertEquals(750, plan.targetHeight);
+        // Sampled frame plus the output bitmap and a quarter of it for the encoding
+        long output = 1000L * 750 * 4;
+        assertEquals(1000L * 750 * 4 + output + output / 4, plan.estimatedBytes);
+    }
+
+    @Test
+    public void stripsForACropThatWouldNotFitWhole() {
+        DecodePlanner.Plan plan = new DecodePlanner(12L * 1024 * 1024, STRIP_BYTES)
+                .plan(4000, 3000, 1000, 1000, 1000, 1000, true, true);
+        assertTrue(plan.tiled);
+        assertEquals(1, plan.sampleSize);
+        assertEquals(0, plan.changes);
+        assertTrue(plan.estimatedBytes <= 12L * 1024 * 1024);
+    }
+
+    @Test
+    public void rgb565BeforeShrinking() {
+        // 1000 x 1000 output needs 5 MB at 4 bytes per pixel, 2.5 MB at 2
+        DecodePlanner.Plan plan = new DecodePlanner(5L * 1024 * 1024, STRIP_BYTES)
+                .plan(1000, 1000, 1000, 1000, 1000, 1000, false, false);
+        assertEquals(2, plan.bytesPerPixel);
+        assertEquals(DecodePlanner.CHANGED_CONFIG, plan.changes);
+        assertEquals(1000, plan.targetWidth);
+    }
+
+    @Test
+    public void alphaShrinksInsteadOfRgb565() {
+        DecodePlanner.Plan plan = new DecodePlanner(5L * 1024 * 1024, STRIP_BYTES)
+                .plan(1000, 1000, 1000, 1000, 1000, 1000, true, false);
+        assertEquals(4, plan.bytesPerPixel);
+        assertEquals(DecodePlanner.CHANGED_SIZE, plan.changes);
+        assertTrue(plan.targetWidth < 1000);
+        assertEquals(plan.targetWidth, plan.targetHeight);
+        assertTrue(plan.estimatedBytes <= 5L * 1024 * 1024);
+    }
+
+    @Test
+    public void smallestOutputWhenNothingFits() {
+        DecodePlanner.Plan plan = new DecodePlanner(1, STRIP_BYTES)
+                .plan(1000, 1000, 1000, 1000, 1000, 1000, false, false);
+        assertEquals(1, plan.targetWidth);
+        assertEquals(1, plan.targetHeight);
+        assertEquals(DecodePlanner.CHANGED_SIZE | DecodePlanner.CHANGED_CONFIG, plan.changes);
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.arkty.androidcamera.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageHeaderTest {
+
+    @Test
+    public void readsJpegFrameHeader() throws IOException {
+        ImageHeader header = probe(jpeg().sof(640, 480).bytes());
+        assertEquals(ImageHeader.FORMAT_JPEG, header.format);
+        assertEquals(640, header.width);
+        assertEquals(480, header.height);
+        assertEquals(Orientation.NORMAL, header.orientation);
+        assertTrue(header.isKnown());
+    }
+
+    @Test
+    public void readsExifOrientation() throws IOException {
+        for(boolean little : new boolean[]{false, true}) {
+            ImageHeader header = probe(jpeg().exif(Orientation.ROTATE_90, little).sof(640, 480).bytes());
+            assertEquals(Orientation.ROTATE_90, header.orientation);
+            assertEquals(480, header.orientedWidth());
+            assertEquals(640, header.orientedHeight());
+        }
+    }
+
+    @Test
+    public void ignoresInvalidOrientation() throws IOException {
+        ImageHeader header = probe(jpeg().exif(9, false).sof(640, 480).bytes());
+        assertEquals(Orientation.NORMAL, header.orientation);
+    }
+
+    @Test
+    public void skipsOtherSegmentsAndFillBytes() throws IOException {
+        JpegBuilder jpeg = jpeg().segment(0xE0, new byte[14]).segment(0xDB, new byte[65]);
+        jpeg.out.write(0xFF);
+        ImageHeader header = probe(jpeg.sof(100, 50).bytes());
+        assertEquals(100, header.width);
+        assertEquals(50, header.height);
+    }
+
+    @Test
+    public void rejectsSegmentLengthBelowTwo() throws IOException {
+        for(int length = 0; length < 2; length++) {
+            JpegBuilder jpeg = jpeg();
+            jpeg.out.write(new byte[]{(byte) 0xFF, (byte) 0xE0, 0, (byte) length});
+            assertFalse(probe(jpeg.sof(100, 50).bytes()).isKnown());
+        }
+    }
+
+    @Test
+    public void stopsAtScanWithoutFrame() throws IOException {
+        JpegBuilder jpeg = jpeg().segment(0xDA, new byte[10]);
+        assertFalse(probe(jpeg.sof(100, 50).bytes()).isKnown());
+    }
+
+    @Test
+    public void survivesTruncatedExif() throws IOException {
+        // IFD0 offset points past the end of the segment
+        byte[] exif = exifSegment(Orientation.ROTATE_180, false);
+        exif[6 + 4] = 0x7F;
+        ImageHeader header = probe(jpeg().segment(0xE1, exif).sof(64, 32).bytes());
+        assertEquals(Orientation.NORMAL, header.orientation);
+        assertEquals(64, header.width);
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsOnTruncatedSegment() throws IOException {
+        byte[] jpeg = jpeg().segment(0xE0, new byte[100]).sof(100, 50).bytes();
+        byte[] truncated = new byte[40];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+        probe(truncated);
+    }
+
+    @Test
+    public void readsPng() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 13, 'I', 'H', 'D', 'R'});
+        writeInt(out, 300);
+        writeInt(out, 200);
+        ImageHeader header = probe(out.toByteArray());
+        assertEquals(ImageHeader.FORMAT_PNG, header.format);
+        assertEquals(300, header.width);
+        assertEquals(200, header.height);
+    }
+
+    @Test
+    public void rejectsUnknownFormat() throws IOException {
+        assertFalse(probe(new byte[]{'G', 'I', 'F', '8', '9', 'a', 0, 0}).isKnown());
+    }
+
+    private static ImageHeader probe(byte[] data) throws IOException {
+        return ImageHeader.probe(new ByteArrayInputStream(data));
+    }
+
+    private static JpegBuilder jpeg() {
+        return new JpegBuilder();
+    }
+
+    /**
+     * APP1 Exif payload with a single orientation entry in IFD0.
+     */
+    static byte[] exifSegment(int orientation, boolean little) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('E');
+        out.write('x');
+        out.write('i');
+        out.write('f');
+        out.write(0);
+        out.write(0);
+        out.write(little ? 'I' : 'M');
+        out.write(little ? 'I' : 'M');
+        write16(out, 42, little);
+        write32(out, 8, little);
+        write16(out, 1, little);
+        write16(out, 0x0112, little);
+        write16(out, 3, little);
+        write32(out, 1, little);
+        write16(out, orientation, little);
+        write16(out, 0, little);
+        write32(out, 0, little);
+        return out.toByteArray();
+    }
+
+    private static void write16(ByteArrayOutputStream out, int value, boolean little) {
+        if(little) {
+            out.write(value & 0xFF);
+            out.write(value >> 8 & 0xFF);
+        }
+        else {
+            out.write(value >> 8 & 0xFF);
+            out.write(value & 0xFF);
+        }
+    }
+
+    private static void write32(ByteArrayOutputStream out, int value, boolean little) {
+        if(little) {
+            write16(out, value & 0xFFFF, true);
+            write16(out, value >>> 16, true);
+        }
+        else {
+            write16(out, value >>> 16, false);
+            write16(out, value & 0xFFFF, false);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        write32(out, value, false);
+    }
+
+    static class JpegBuilder {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        JpegBuilder() {
+            out.write(0xFF);
+            out.write(0xD8);
+        }
+
+        JpegBuilder segment(int marker, byte[] payload) {
+            out.write(0xFF);
+            out.write(marker);
+            write16(out, payload.length + 2, false);
+            out.write(payload, 0, payload.length);
+            return this;
+        }
+
+        JpegBuilder exif(int orientation, boolean little) {
+            return segment(0xE1, exifSegment(orientation, little));
+        }
+
+        JpegBuilder sof(int width, int height) {
+            ByteArrayOutputStream sof = new ByteArrayOutputStream();
+            sof.write(8);
+            write16(sof, height, false);
+            write16(sof, width, false);
+            sof.write(3);
+            return segment(0xC0, sof.toByteArray());
+        }
+
+        byte[] bytes() {
+            out.write(0xFF);
+            out.write(0xD9);
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.github.arkty.androidcamera.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JpegMetadataTest {
+
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+
+    private static final int TAG_MAKE = 0x010F;
+
+    // Offsets in the TIFF block built by exif()
+    private static final int IFD0 = 8;
+    private static final int ORIENTATION_VALUE = IFD0 + 2 + 12 + 8;
+    private static final int IFD1_LINK = IFD0 + 2 + 4 * 12;
+    private static final int EXIF_IFD = 100;
+    private static final int GPS_IFD = 150;
+    private static final int GPS_DATA = 180;
+    private static final int MAKE_DATA = 210;
+    private static final int IFD1 = 230;
+    private static final int TIFF_SIZE = 248;
+
+    // SOI and a JFIF APP0 of 16 bytes ahead of the spliced segments
+    private static final int JFIF_END = 2 + 2 + 16;
+
+    @Test
+    public void editsExifForTheOutput() {
+        for(boolean little : new boolean[]{false, true}) {
+            byte[] tiff = spliceExif(little, null);
+            assertEquals(Orientation.NORMAL, ImageHeader.uint16(tiff, ORIENTATION_VALUE, little));
+            // PixelXDimension is a LONG, PixelYDimension a SHORT
+            assertEquals(800, ImageHeader.int32(tiff, EXIF_IFD + 2 + 8, little));
+            assertEquals(600, ImageHeader.uint16(tiff, EXIF_IFD + 2 + 12 + 8, little));
+            assertEquals(0, ImageHeader.int32(tiff, IFD1_LINK, little));
+            // IFD1 itself is left alone, it's just no longer reachable
+            assertEquals(1, ImageHeader.uint16(tiff, IFD1, little));
+            // Nothing was denied
+            assertEquals(2, ImageHeader.uint16(tiff, GPS_IFD, little));
+            assertEquals('C', tiff[MAKE_DATA]);
+        }
+    }
+
+    @Test
+    public void zeroesDeniedTags() {
+        for(boolean little : new boolean[]{false, true}) {
+            byte[] tiff = spliceExif(little, new int[]{JpegMetadata.TAG_GPS_INFO, TAG_MAKE});
+            // The GPS IFD loses its entries and the values they point to
+            assertEquals(0, ImageHeader.uint16(tiff, GPS_IFD, little));
+            assertZero(tiff, GPS_IFD + 2, GPS_IFD + 2 + 2 * 12);
+            assertZero(tiff, GPS_DATA, GPS_DATA + 24);
+            // The pointer to it stays valid
+            assertEquals(GPS_IFD, ImageHeader.int32(tiff, IFD0 + 2 + 3 * 12 + 8, little));
+
+            assertZero(tiff, MAKE_DATA, MAKE_DATA + 6);
+            assertEquals(0, ImageHeader.int32(tiff, IFD0 + 2 + 8, little));
+            assertEquals(TAG_MAKE, ImageHeader.uint16(tiff, IFD0 + 2, little));
+
+            assertEquals(Orientation.NORMAL, ImageHeader.uint16(tiff, ORIENTATION_VALUE, little));
+            assertEquals(800, ImageHeader.int32(tiff, EXIF_IFD + 2 + 8, little));
+        }
+    }
+
+    @Test
+    public void splicesAfterJfif() {
+        byte[] exif = exifSegment(exif(false));
+        JpegMetadata metadata = new JpegMetadata(JpegMetadata.SEGMENT_EXIF, null);
+        metadata.add(APP1, exif);
+        EncodeBuffer jpeg = encoded(true);
+        int size = jpeg.size();
+        assertTrue(metadata.spliceInto(jpeg, 800, 600));
+        assertEquals(size + metadata.length(), jpeg.size());
+
+        byte[] b = jpeg.array();
+        assertEquals(0xFF, b[JFIF_END] & 0xFF);
+        assertEquals(APP1, b[JFIF_END + 1] & 0xFF);
+        assertEquals(exif.length + 2, ImageHeader.uint16(b, JFIF_END + 2, false));
+        assertEquals(APP0, b[3] & 0xFF);
+        // The encoder's own segments follow unchanged
+        assertEquals(0xDB, b[JFIF_END + 4 + exif.length + 1] & 0xFF);
+
+        jpeg = encoded(false);
+        assertTrue(metadata.spliceInto(jpeg, 800, 600));
+        assertEquals(APP1, jpeg.array()[3] & 0xFF);
+    }
+
+    @Test
+    public void leavesOtherDataAlone() {
+        JpegMetadata metadata = new JpegMetadata(JpegMetadata.SEGMENT_EXIF, null);
+        metadata.add(APP1, exifSegment(exif(false)));
+
+        EncodeBuffer png = new EncodeBuffer(16);
+        png.write(new byte[]{(byte) 0x89, 'P', 'N', 'G'}, 0, 4);
+        assertFalse(metadata.spliceInto(png, 800, 600));
+        assertEquals(4, png.size());
+
+        EncodeBuffer jpeg = encoded(true);
+        int size = jpeg.size();
+        assertTrue(new JpegMetadata(JpegMetadata.SEGMENT_EXIF, null).spliceInto(jpeg, 800, 600));
+        assertEquals(size, jpeg.size());
+    }
+
+    @Test
+    public void keepsWantedSegmentsOnly() {
+        byte[] xmp = ascii("http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>");
+        byte[] icc = ascii("ICC_PROFILE\0\1\1profile");
+        byte[] other = ascii("Other\0");
+
+        JpegMetadata metadata = new JpegMetadata(JpegMetadata.SEGMENT_EXIF | JpegMetadata.SEGMENT_XMP, null);
+        assertTrue(metadata.wants(APP1));
+        assertFalse(metadata.wants(APP2));
+        metadata.add(APP1, exifSegment(exif(false)));
+        // Only the first EXIF block is kept
+        metadata.add(APP1, exifSegment(exif(true)));
+        metadata.add(APP1, xmp);
+        metadata.add(APP1, other);
+        metadata.add(APP2, icc);
+        assertEquals(exifSegment(exif(false)).length + 4 + xmp.length + 4, metadata.length());
+
+        metadata = new JpegMetadata(JpegMetadata.SEGMENT_ICC, null);
+        assertFalse(metadata.wants(APP1));
+        assertTrue(metadata.wants(APP2));
+        metadata.add(APP1, exifSegment(exif(false)));
+        metadata.add(APP2, other);
+        assertTrue(metadata.isEmpty());
+        metadata.add(APP2, icc);
+        assertEquals(icc.length + 4, metadata.length());
+    }
+
+    @Test
+    public void collectsWhileProbing() throws IOException {
+        byte[] exif = exifSegment(exif(true));
+        byte[] source = new ImageHeaderTest.JpegBuilder().segment(APP0, new byte[14]).segment(APP1, exif)
+                .sof(4000, 3000).bytes();
+        JpegMetadata metadata = new JpegMetadata(JpegMetadata.SEGMENT_EXIF, null);
+        ImageHeader header = ImageHeader.probe(new ByteArrayInputStream(source), metadata);
+        assertEquals(Orientation.ROTATE_90, header.orientation);
+        assertEquals(exif.length + 4, metadata.length());
+    }
+
+    @Test
+    public void survivesMalformedOffsets() {
+        for(boolean little : new boolean[]{false, true}) {
+            // IFD0 past the end of the segment and before the TIFF header
+            for(int offset : new int[]{0x7FFFFFFF, TIFF_SIZE - 1, -8}) {
+                byte[] tiff = exif(little);
+                put32(tiff, 4, offset, little);
+                assertArrayEquals(tiff, splice(tiff, null));
+            }
+
+            // Sub-IFD and value offsets past the end are skipped, the rest is still edited
+            byte[] tiff = exif(little);
+            put32(tiff, IFD0 + 2 + 2 * 12 + 8, 0x7FFFFFF0, little);
+            put32(tiff, GPS_IFD + 2 + 8, TIFF_SIZE - 8, little);
+            byte[] edited = splice(tiff, new int[]{JpegMetadata.TAG_GPS_INFO});
+            assertEquals(Orientation.NORMAL, ImageHeader.uint16(edited, ORIENTATION_VALUE, little));
+            assertEquals(4000, ImageHeader.int32(edited, EXIF_IFD + 2 + 8, little));
+            assertEquals(0, ImageHeader.uint16(edited, GPS_IFD, little));
+
+            // Entry count larger than the segment
+            tiff = exif(little);
+            put16(tiff, EXIF_IFD, 0xFFFF, little);
+            edited = splice(tiff, null);
+            assertEquals(800, ImageHeader.int32(edited, EXIF_IFD + 2 + 8, little));
+
+            // Cut off in the middle of IFD0
+            tiff = Arrays.copyOf(exif(little), IFD0 + 2 + 12 + 6);
+            edited = splice(tiff, null);
+            assertArrayEquals(tiff, edited);
+        }
+    }
+
+    /**
+     * Runs the TIFF block from {@link #exif} through a splice and returns the edited copy.
+     */
+    private static byte[] spliceExif(boolean little, int[] deniedTags) {
+        return splice(exif(little), deniedTags);
+    }
+
+    private static byte[] splice(byte[] tiff, int[] deniedTags) {
+        JpegMetadata metadata = new JpegMetadata(JpegMetadata.SEGMENT_EXIF, deniedTags);
+        metadata.add(APP1, exifSegment(tiff));
+        EncodeBuffer jpeg = encoded(true);
+        assertTrue(metadata.spliceInto(jpeg, 800, 600));
+        return Arrays.copyOfRange(jpeg.array(), JFIF_END + 4 + 6, JFIF_END + 4 + 6 + tiff.length);
+    }
+
+    /**
+     * TIFF block with Make and Orientation in IFD0, pixel dimensions in the EXIF IFD, a GPS
+     * IFD with an out-of-line value and a linked IFD1.
+     */
+    private static byte[] exif(boolean little) {
+        byte[] b = new byte[TIFF_SIZE];
+        b[0] = b[1] = (byte) (little ? 'I' : 'M');
+        put16(b, 2, 42, little);
+        put32(b, 4, IFD0, little);
+
+        put16(b, IFD0, 4, little);
+        entry(b, IFD0, 0, TAG_MAKE, 2, 6, MAKE_DATA, little);
+        entry(b, IFD0, 1, 0x0112, 3, 1, 0, little);
+        put16(b, ORIENTATION_VALUE, Orientation.ROTATE_90, little);
+        entry(b, IFD0, 2, 0x8769, 4, 1, EXIF_IFD, little);
+        entry(b, IFD0, 3, JpegMetadata.TAG_GPS_INFO, 4, 1, GPS_IFD, little);
+        put32(b, IFD1_LINK, IFD1, little);
+
+        put16(b, EXIF_IFD, 2, little);
+        entry(b, EXIF_IFD, 0, 0xA002, 4, 1, 4000, little);
+        entry(b, EXIF_IFD, 1, 0xA003, 3, 1, 0, little);
+        put16(b, EXIF_IFD + 2 + 12 + 8, 3000, little);
+
+        put16(b, GPS_IFD, 2, little);
+        // GPSLatitude: three RATIONALs
+        entry(b, GPS_IFD, 0, 0x0002, 5, 3, GPS_DATA, little);
+        // GPSVersionID: four BYTEs in the value field
+        entry(b, GPS_IFD, 1, 0x0000, 1, 4, 0, little);
+        b[GPS_IFD + 2 + 12 + 8] = 2;
+        b[GPS_IFD + 2 + 12 + 9] = 2;
+        for(int i = GPS_DATA; i < GPS_DATA + 24; i++) {
+            b[i] = (byte) (i - GPS_DATA + 1);
+        }
+
+        byte[] make = ascii("Canon\0");
+        System.arraycopy(make, 0, b, MAKE_DATA, make.length);
+
+        put16(b, IFD1, 1, little);
+        entry(b, IFD1, 0, 0x0201, 4, 1, 300, little);
+        return b;
+    }
+
+    private static void entry(byte[] b, int ifd, int index, int tag, int type, int count, int value, boolean little) {
+        int entry = ifd + 2 + index * 12;
+        put16(b, entry, tag, little);
+        put16(b, entry + 2, type, little);
+        put32(b, entry + 4, count, little);
+        put32(b, entry + 8, value, little);
+    }
+
+    private static byte[] exifSegment(byte[] tiff) {
+        byte[] segment = new byte[6 + tiff.length];
+        System.arraycopy(ascii("Exif\0\0"), 0, segment, 0, 6);
+        System.arraycopy(tiff, 0, segment, 6, tiff.length);
+        return segment;
+    }
+
+    /**
+     * What the platform encoder writes: SOI, optionally JFIF, then the tables.
+     */
+    private static EncodeBuffer encoded(boolean jfif) {
+        ImageHeaderTest.JpegBuilder jpeg = new ImageHeaderTest.JpegBuilder();
+        if(jfif)
+            jpeg.segment(APP0, ascii("JFIF\0\1\1\0\0\1\0\1\0\0"));
+        byte[] bytes = jpeg.segment(0xDB, new byte[65]).sof(800, 600).bytes();
+        EncodeBuffer buffer = new EncodeBuffer(bytes.length);
+        buffer.write(bytes, 0, bytes.length);
+        return buffer;
+    }
+
+    private static void assertZero(byte[] b, int from, int to) {
+        for(int i = from; i < to; i++) {
+            assertEquals("byte " + i, 0, b[i]);
+        }
+    }
+
+    private static void put16(byte[] b, int offset, int value, boolean little) {
+        b[offset + (little ? 0 : 1)] = (byte) value;
+        b[offset + (little ? 1 : 0)] = (byte) (value >> 8);
+    }
+
+    private static void put32(byte[] b, int offset, int value, boolean little) {
+        put16(b, offset + (little ? 0 : 2), value & 0xFFFF, little);
+        put16(b, offset + (little ? 2 : 0), value >>> 16, little);
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for(int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.arkty.androidcamera.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class OrientationTest {
+
+    private static final int W = 5;
+    private static final int H = 3;
+
+    @Test
+    public void transformMatchesAffine() {
+        int[] src = new int[W * H];
+        for(int i = 0; i < src.length; i++) {
+            src[i] = i;
+        }
+        for(int o = Orientation.NORMAL; o <= Orientation.ROTATE_270; o++) {
+            int outW = Orientation.swapsDimensions(o) ? H : W;
+            int[] dst = new int[W * H];
+            Orientation.transform(o, src, W, H, dst);
+
+            float[] m = Orientation.affine(o, W, H);
+            for(int y = 0; y < H; y++) {
+                for(int x = 0; x < W; x++) {
+                    // Where the center of the stored pixel ends up
+                    float cx = x + 0.5f;
+                    float cy = y + 0.5f;
+                    int ux = (int) Math.floor(m[0] * cx + m[1] * cy + m[2]);
+                    int uy = (int) Math.floor(m[3] * cx + m[4] * cy + m[5]);
+                    assertEquals("orientation " + o + " at " + x + "," + y, y * W + x, dst[uy * outW + ux]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rotate90TurnsClockwise() {
+        // 2 x 1 stored: left, right; upright it is 1 x 2 with left on top
+        int[] dst = new int[2];
+        Orientation.transform(Orientation.ROTATE_90, new int[]{1, 2}, 2, 1, dst);
+        assertArrayEquals(new int[]{1, 2}, dst);
+
+        Orientation.transform(Orientation.ROTATE_270, new int[]{1, 2}, 2, 1, dst);
+        assertArrayEquals(new int[]{2, 1}, dst);
+    }
+
+    @Test
+    public void storedRectInvertsAffine() {
+        for(int o = Orientation.NORMAL; o <= Orientation.ROTATE_270; o++) {
+            int uprightW = Orientation.swapsDimensions(o) ? H : W;
+            int uprightH = Orientation.swapsDimensions(o) ? W : H;
+            int[] whole = Orientation.storedRect(o, W, H, new int[]{0, 0, uprightW, uprightH});
+            assertArrayEquals("orientation " + o, new int[]{0, 0, W, H}, whole);
+
+            // A single upright pixel maps back to the single stored pixel it came from
+            float[] m = Orientation.affine(o, W, H);
+            int[] rect = Orientation.storedRect(o, W, H, new int[]{0, 0, 1, 1});
+            float cx = rect[0] + 0.5f;
+            float cy = rect[1] + 0.5f;
+            assertEquals(1, rect[2] - rect[0]);
+            assertEquals(1, rect[3] - rect[1]);
+            assertEquals(0, (int) Math.floor(m[0] * cx + m[1] * cy + m[2]));
+            assertEquals(0, (int) Math.floor(m[3] * cx + m[4] * cy + m[5]));
+        }
+    }
+
+    @Test
+    public void swapsOnlyForQuarterTurns() {
+        for(int o = Orientation.NORMAL; o <= Orientation.ROTATE_270; o++) {
+            assertEquals(o >= Orientation.TRANSPOSE, Orientation.swapsDimensions(o));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.arkty.androidcamera.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QualitySearchTest {
+
+    @Test
+    public void findsLowestQualityReachingTheScore() {
+        double minScore = scoreAt(80);
+        FakeProxy proxy = new FakeProxy();
+        QualitySearch search = new QualitySearch(minScore, ImageHeader.FORMAT_JPEG);
+        int q = search.search(proxy);
+
+        assertEquals(80, q);
+        assertEquals(minScore, search.getScore(), 1e-9);
+        // One probe at the top, then a binary search over the rest
+        assertTrue(proxy.probes <= 8);
+        assertTrue(search.score(q - 1) < minScore);
+    }
+
+    @Test
+    public void searchesFromTheBudgetFloor() {
+        QualitySearch search = new QualitySearch(0, ImageHeader.FORMAT_JPEG);
+        assertEquals(BudgetSearch.MIN_QUALITY, search.search(new FakeProxy()));
+    }
+
+    @Test
+    public void returnsMaxQualityWhenScoreIsOutOfReach() {
+        QualitySearch search = new QualitySearch(1.5, ImageHeader.FORMAT_JPEG);
+        assertEquals(BudgetSearch.MAX_QUALITY, search.search(new FakeProxy()));
+        assertTrue(search.getScore() < 1.5);
+    }
+
+    private static double scoreAt(int q) {
+        QualitySearch probe = new QualitySearch(0, ImageHeader.FORMAT_JPEG);
+        probe.search(new FakeProxy());
+        return probe.score(q);
+    }
+
+    /**
+     * Gray gradient whose "encoding" adds a checkerboard of noise that fades with quality.
+     */
+    static class FakeProxy implements QualitySearch.Proxy {
+
+        private static final int SIZE = 32;
+
+        int probes;
+
+        @Override
+        public int getWidth() {
+            return SIZE;
+        }
+
+        @Override
+        public int getHeight() {
+            return SIZE;
+        }
+
+        @Override
+        public int[] getPixels() {
+            return pixels(100);
+        }
+
+        @Override
+        public void encode(int format, int quality, EncodeBuffer out) {
+            probes++;
+            out.write(quality);
+        }
+
+        @Override
+        public int[] decode(EncodeBuffer encoded) {
+            return pixels(encoded.array()[0]);
+        }
+
+        private static int[] pixels(int quality) {
+            int noise = 100 - quality;
+            int[] pixels = new int[SIZE * SIZE];
+            for(int y = 0; y < SIZE; y++) {
+                for(int x = 0; x < SIZE; x++) {
+                    int v = 64 + (x + y) * 2 + ((x + y) % 2 == 0 ? noise : -noise);
+                    v = Math.max(0, Math.min(255, v));
+                    pixels[y * SIZE + x] = 0xFF000000 | v << 16 | v << 8 | v;
+                }
+            }
+            return pixels;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.arkty.androidcamera.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ResamplerTest {
+
+    private static final int[] FILTERS = {Resampler.FILTER_BOX, Resampler.FILTER_LANCZOS3};
+
+    @Test
+    public void keepsConstantColor() {
+        int color = 0xFF336699;
+        int[] src = new int[50 * 30];
+        Arrays.fill(src, color);
+        int[][] sizes = {{50, 30}, {17, 11}, {50, 7}, {9, 30}, {120, 64}};
+        for(int filter : FILTERS) {
+            for(int[] size : sizes) {
+                int[] dst = new int[size[0] * size[1] + 3];
+                new Resampler(filter, null, 1).resample(src, 50, 30, dst, size[0], size[1]);
+                for(int i = 0; i < size[0] * size[1]; i++) {
+                    assertEquals("filter " + filter + " at " + size[0] + "x" + size[1], color, dst[i]);
+                }
+                // Nothing is written past the output size
+                assertEquals(0, dst[size[0] * size[1]]);
+            }
+        }
+    }
+
+    @Test
+    public void boxHalvesByAveraging() {
+        int[] src = {
+                argb(255, 0, 40, 200), argb(255, 4, 0, 100), argb(0, 10, 10, 10), argb(0, 30, 10, 10),
+                argb(255, 8, 80, 0), argb(255, 0, 0, 100), argb(0, 10, 10, 10), argb(0, 30, 10, 10),
+        };
+        int[] dst = new int[2];
+        new Resampler(Resampler.FILTER_BOX, null, 1).resample(src, 4, 2, dst, 2, 1);
+        assertArrayEquals(new int[]{argb(255, 3, 30, 100), argb(0, 20, 10, 10)}, dst);
+    }
+
+    @Test
+    public void helpersDontChangeTheResult() {
+        Random random = new Random(42);
+        int[] src = new int[97 * 61];
+        for(int i = 0; i < src.length; i++) {
+            src[i] = random.nextInt();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            for(int filter : FILTERS) {
+                int[] expected = new int[40 * 33];
+                new Resampler(filter, null, 4).resample(src, 97, 61, expected, 40, 33);
+
+                int[] parallel = new int[40 * 33];
+                new Resampler(filter, pool, 4).resample(src, 97, 61, parallel, 40, 33);
+                assertArrayEquals(expected, parallel);
+
+                // An executor that drops the helpers leaves the work to the caller
+                int[] dropped = new int[40 * 33];
+                new Resampler(filter, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                    }
+                }, 4).resample(src, 97, 61, dropped, 40, 33);
+                assertArrayEquals(expected, dropped);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsBadSizes() {
+        Resampler resampler = new Resampler(Resampler.FILTER_BOX, null, 1);
+        int[][] bad = {
+                {0, 10, 10, 10}, {10, 0, 10, 10}, {10, 10, 0, 10}, {10, 10, 10, -1},
+        };
+        for(int[] size : bad) {
+            assertRejected(resampler, new int[100], size[0], size[1], new int[100], size[2], size[3]);
+        }
+        // Arrays too small for the sizes
+        assertRejected(resampler, new int[99], 10, 10, new int[100], 10, 10);
+        assertRejected(resampler, new int[100], 10, 10, new int[99], 10, 10);
+    }
+
+    private static void assertRejected(Resampler resampler, int[] src, int srcW, int srcH, int[] dst, int dstW, int dstH) {
+        try {
+            resampler.resample(src, srcW, srcH, dst, dstW, dstH);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("Accepted " + srcW + "x" + srcH + " -> " + dstW + "x" + dstH);
+    }
+
+    private static int argb(int a, int r, int g, int b) {
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+}